@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers that window dumps are received into, reused from one capture to the next so that a
+ * steady stream of multi-megabyte dumps does not allocate a new array for each of them.
+ *
+ * <p>A buffer is handed out for a single dump and given back once it has been parsed. At most
+ * one buffer per concurrent capture is kept. Buffers are sized with some headroom, as a window
+ * dumps to roughly the same size every time.
+ */
+public class CaptureBufferPool {
+
+  private final int maxBuffers;
+  private final List<byte[]> free = new ArrayList<>();
+  private long pooledBytes;
+  private long peakPooledBytes;
+  private long hits;
+  private long misses;
+
+  CaptureBufferPool(int maxBuffers) {
+    this.maxBuffers = maxBuffers;
+  }
+
+  /** Returns a buffer of at least the given size, taking the smallest one that fits. */
+  synchronized byte[] acquire(int size) {
+    int best = -1;
+    for (int i = 0; i < free.size(); i++) {
+      int length = free.get(i).length;
+      if (length >= size && (best == -1 || length < free.get(best).length)) {
+        best = i;
+      }
+    }
+    if (best == -1) {
+      misses++;
+      return new byte[size + size / 4];
+    }
+    hits++;
+    byte[] buffer = free.remove(best);
+    pooledBytes -= buffer.length;
+    return buffer;
+  }
+
+  /** Gives back a buffer, which must no longer be referenced by the caller. */
+  synchronized void release(byte[] buffer) {
+    if (free.size() == maxBuffers) {
+      // Keep the larger buffers, they fit more dumps.
+      int smallest = 0;
+      for (int i = 1; i < free.size(); i++) {
+        if (free.get(i).length < free.get(smallest).length) {
+          smallest = i;
+        }
+      }
+      if (free.get(smallest).length >= buffer.length) {
+        return;
+      }
+      pooledBytes -= free.remove(smallest).length;
+    }
+    free.add(buffer);
+    pooledBytes += buffer.length;
+    peakPooledBytes = Math.max(peakPooledBytes, pooledBytes);
+  }
+
+  /** Number of dumps received into a pooled buffer. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Number of dumps for which a buffer had to be allocated. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Bytes currently held by the buffers waiting in the pool. */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /** Most bytes ever held by the buffers waiting in the pool. */
+  public synchronized long getPeakPooledBytes() {
+    return peakPooledBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CaptureBufferPool{hits=" + hits + ", misses=" + misses + ", pooledBytes="
+        + pooledBytes + ", peakPooledBytes=" + peakPooledBytes + "}";
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A view hierarchy stored as flat arrays indexed by view, in depth-first order, rather than as a
+ * tree of {@link ViewNode}s. The root is view 0, and -1 stands for "no view".
+ *
+ * <p>Property values of every view are packed into two shared arrays, each view owning the run of
+ * slots described by its {@link PropertyShape}. Equal string values are stored once, as most of
+ * them repeat from view to view. {@link ViewNode}s are only created when asked for.
+ */
+public class CompactSnapshot {
+  public static final int NO_VIEW = -1;
+
+  private final Window window;
+  private final int size;
+
+  private final int[] parent;
+  private final int[] firstChild;
+  private final int[] nextSibling;
+  private final int[] childIndex;
+
+  private final int[] left;
+  private final int[] top;
+  private final int[] width;
+  private final int[] height;
+  private final float[] translationX;
+  private final float[] translationY;
+  private final byte[] visibility;
+  private final int[] absoluteLeft;
+  private final int[] absoluteTop;
+
+  private final String[] ids;
+  private final String[] names;
+  private final String[] hashCodes;
+  // Whether the view came from an encoded dump, which names its properties differently.
+  private final boolean[] encoded;
+
+  private final PropertyShape[] shapes;
+  private final int[] propertyOffset;
+  private final long[] propertyBits;
+  private final Object[] propertyRefs;
+
+  // Views handed out so far, so that each is only created once.
+  private ViewNode[] views;
+
+  private CompactSnapshot(Window window, int size, int slots) {
+    this.window = window;
+    this.size = size;
+    parent = new int[size];
+    firstChild = new int[size];
+    nextSibling = new int[size];
+    childIndex = new int[size];
+    left = new int[size];
+    top = new int[size];
+    width = new int[size];
+    height = new int[size];
+    translationX = new float[size];
+    translationY = new float[size];
+    visibility = new byte[size];
+    absoluteLeft = new int[size];
+    absoluteTop = new int[size];
+    ids = new String[size];
+    names = new String[size];
+    hashCodes = new String[size];
+    encoded = new boolean[size];
+    shapes = new PropertyShape[size];
+    propertyOffset = new int[size];
+    propertyBits = new long[slots];
+    propertyRefs = new Object[slots];
+  }
+
+  /** Copies the hierarchy under the given root. */
+  public static CompactSnapshot of(Window window, ViewNode root) {
+    int[] counts = new int[2];
+    count(root, counts);
+    CompactSnapshot snapshot = new CompactSnapshot(window, counts[0], counts[1]);
+    snapshot.add(root, NO_VIEW, 0, new int[2], new HashMap<String, String>());
+    snapshot.computeAbsoluteBounds();
+    return snapshot;
+  }
+
+  /** Same as {@link ViewHierarchySnapshotter#computeAbsoluteBounds(ViewNode)}. */
+  private void computeAbsoluteBounds() {
+    // Where the children of each view are laid out from. Parents come before their children.
+    float[] originX = new float[size];
+    float[] originY = new float[size];
+    for (int view = 0; view < size; view++) {
+      int p = parent[view];
+      if (p == NO_VIEW) {
+        absoluteLeft[view] = left[view];
+        absoluteTop[view] = top[view];
+        originX[view] = getInt(view, PropertySymbols.WINDOW_LEFT, 0) + left[view];
+        originY[view] = getInt(view, PropertySymbols.WINDOW_TOP, 0) + top[view];
+      } else {
+        absoluteLeft[view] = (int) (originX[p] + left[view]);
+        absoluteTop[view] = (int) (originY[p] + top[view]);
+        originX[view] = originX[p] + left[view];
+        originY[view] = originY[p] + top[view];
+      }
+      originX[view] += translationX[view];
+      originY[view] += translationY[view];
+    }
+  }
+
+  private static void count(ViewNode node, int[] counts) {
+    counts[0]++;
+    counts[1] += node.getShape().size();
+    for (int i = 0; i < node.children.size(); i++) {
+      count(node.children.get(i), counts);
+    }
+  }
+
+  // next holds the next free view index and property slot.
+  private int add(ViewNode node, int parentIndex, int indexInParent, int[] next,
+      Map<String, String> strings) {
+    int index = next[0]++;
+    parent[index] = parentIndex;
+    firstChild[index] = NO_VIEW;
+    nextSibling[index] = NO_VIEW;
+    childIndex[index] = indexInParent;
+    left[index] = node.left;
+    top[index] = node.top;
+    width[index] = node.width;
+    height[index] = node.height;
+    translationX[index] = node.translationX;
+    translationY[index] = node.translationY;
+    visibility[index] = (byte) node.visibility;
+    ids[index] = node.id;
+    names[index] = node.name;
+    hashCodes[index] = node.hashCode;
+    encoded[index] = node instanceof ViewNode2;
+
+    PropertyShape shape = node.getShape();
+    shapes[index] = shape;
+    propertyOffset[index] = next[1];
+    System.arraycopy(node.getPropertyBits(), 0, propertyBits, next[1], shape.size());
+    Object[] refs = node.getPropertyRefs();
+    for (int slot = 0; slot < shape.size(); slot++) {
+      Object ref = refs[slot];
+      if (ref instanceof String) {
+        String string = strings.get(ref);
+        if (string == null) {
+          strings.put((String) ref, (String) ref);
+        } else {
+          ref = string;
+        }
+      }
+      propertyRefs[next[1] + slot] = ref;
+    }
+    next[1] += shape.size();
+
+    int previous = NO_VIEW;
+    for (int i = 0; i < node.children.size(); i++) {
+      int child = add(node.children.get(i), index, i, next, strings);
+      if (previous == NO_VIEW) {
+        firstChild[index] = child;
+      } else {
+        nextSibling[previous] = child;
+      }
+      previous = child;
+    }
+    return index;
+  }
+
+  public Window getWindow() {
+    return window;
+  }
+
+  /** Returns the number of views. */
+  public int size() {
+    return size;
+  }
+
+  public int getParent(int view) {
+    return parent[view];
+  }
+
+  public int getFirstChild(int view) {
+    return firstChild[view];
+  }
+
+  public int getNextSibling(int view) {
+    return nextSibling[view];
+  }
+
+  /** Returns the position of the view among its parent's children. */
+  public int getChildIndex(int view) {
+    return childIndex[view];
+  }
+
+  public int getLeft(int view) {
+    return left[view];
+  }
+
+  public int getTop(int view) {
+    return top[view];
+  }
+
+  public int getWidth(int view) {
+    return width[view];
+  }
+
+  public int getHeight(int view) {
+    return height[view];
+  }
+
+  public float getTranslationX(int view) {
+    return translationX[view];
+  }
+
+  public float getTranslationY(int view) {
+    return translationY[view];
+  }
+
+  public int getVisibility(int view) {
+    return visibility[view];
+  }
+
+  public String getId(int view) {
+    return ids[view];
+  }
+
+  public String getName(int view) {
+    return names[view];
+  }
+
+  public String getHashCode(int view) {
+    return hashCodes[view];
+  }
+
+  public boolean hasProperty(int view, int symbol) {
+    return shapes[view].slotOf(symbol) >= 0;
+  }
+
+  /** Returns the value of the given property as displayed, or null if the view lacks it. */
+  public String getString(int view, int symbol) {
+    PropertyShape shape = shapes[view];
+    int slot = shape.slotOf(symbol);
+    if (slot < 0) {
+      return null;
+    }
+    int offset = propertyOffset[view];
+    return PropertyMap.format(shape.typeAt(slot), propertyBits[offset + slot],
+        propertyRefs[offset + slot]);
+  }
+
+  public boolean getBoolean(int view, int symbol, boolean defaultValue) {
+    PropertyShape shape = shapes[view];
+    int slot = shape.slotOf(symbol);
+    if (slot < 0) {
+      return defaultValue;
+    }
+    int offset = propertyOffset[view];
+    return PropertyMap.toBoolean(shape.typeAt(slot), propertyBits[offset + slot],
+        propertyRefs[offset + slot]);
+  }
+
+  public int getInt(int view, int symbol, int defaultValue) {
+    PropertyShape shape = shapes[view];
+    int slot = shape.slotOf(symbol);
+    if (slot < 0) {
+      return defaultValue;
+    }
+    int offset = propertyOffset[view];
+    return PropertyMap.toInt(shape.typeAt(slot), propertyBits[offset + slot],
+        propertyRefs[offset + slot], defaultValue);
+  }
+
+  public float getFloat(int view, int symbol, float defaultValue) {
+    PropertyShape shape = shapes[view];
+    int slot = shape.slotOf(symbol);
+    if (slot < 0) {
+      return defaultValue;
+    }
+    int offset = propertyOffset[view];
+    return PropertyMap.toFloat(shape.typeAt(slot), propertyBits[offset + slot],
+        propertyRefs[offset + slot], defaultValue);
+  }
+
+  /** Same as {@link ViewHierarchySnapshotter#findVisibleRect(ViewNode)}, for a view by index. */
+  public Rect findVisibleRect(int view) {
+    return new Rect(absoluteLeft[view], absoluteTop[view], width[view], height[view]);
+  }
+
+  /**
+   * Returns the view at the given index as a {@link ViewNode}, creating it and its ancestors if
+   * needed. Its children are created as they are accessed.
+   */
+  public synchronized ViewNode getNode(int view) {
+    if (views == null) {
+      views = new ViewNode[size];
+    }
+    ViewNode node = views[view];
+    if (node != null) {
+      return node;
+    }
+    ViewNode parentNode = parent[view] == NO_VIEW ? null : getNode(parent[view]);
+    node = encoded[view] ? new ViewNode2(window, parentNode, childIndex[view])
+        : new ViewNode(window, parentNode, childIndex[view]);
+    node.children = new ChildList(view);
+    node.name = names[view];
+    node.hashCode = hashCodes[view];
+    int offset = propertyOffset[view];
+    int end = offset + shapes[view].size();
+    node.setProperties(shapes[view], Arrays.copyOfRange(propertyBits, offset, end),
+        Arrays.copyOfRange(propertyRefs, offset, end));
+    node.loadFields();
+    // The copied fields win over the loaded ones, which may be defaults.
+    node.id = ids[view];
+    node.left = left[view];
+    node.top = top[view];
+    node.width = width[view];
+    node.height = height[view];
+    node.translationX = translationX[view];
+    node.translationY = translationY[view];
+    node.visibility = visibility[view];
+    node.absoluteLeft = absoluteLeft[view];
+    node.absoluteTop = absoluteTop[view];
+    node.hasAbsoluteBounds = true;
+    node.measureTime = node.layoutTime = node.drawTime = -1;
+    views[view] = node;
+    return node;
+  }
+
+  /** Returns the root as a {@link ViewNode}. */
+  public ViewNode getRoot() {
+    return getNode(0);
+  }
+
+  @Override
+  public String toString() {
+    return "<CompactSnapshot " + window + " views=" + size + ">";
+  }
+
+  /** The children of a view, created on first access. */
+  private class ChildList extends AbstractList<ViewNode> {
+    private final int[] children;
+
+    ChildList(int view) {
+      int count = 0;
+      for (int c = firstChild[view]; c != NO_VIEW; c = nextSibling[c]) {
+        count++;
+      }
+      children = new int[count];
+      for (int c = firstChild[view], i = 0; c != NO_VIEW; c = nextSibling[c], i++) {
+        children[i] = c;
+      }
+    }
+
+    @Override
+    public ViewNode get(int index) {
+      if (index < 0 || index >= children.length) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + children.length);
+      }
+      return getNode(children[index]);
+    }
+
+    @Override
+    public int size() {
+      return children.length;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.android.cyborg;
 
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.Client;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 
@@ -27,6 +28,8 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.lang.InterruptedException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
 import java.util.List;
@@ -36,20 +39,40 @@ public class Cyborg {
   /** Device proxy to communicate with devices. */
   private static final DeviceProxy deviceProxy;
 
+  private static final long SHELL_TIMEOUT_SECONDS = 30;
+
   /** The device paired with this cyborg instance. */
   private CyborgDevice device;
 
+  private final IdleDetector idleDetector;
+
+  // The client whose window was last tapped, which most likely receives key presses too.
+  private volatile Client inputClient;
+
+  private final CyborgAsync async;
+
   static {
     deviceProxy = DeviceProxy.getInstance();
   }
 
   public Cyborg(IDevice device) {
-    this.device = new CyborgDevice(device);
+    this(device, CyborgDevice.DEFAULT_CAPTURE_PARALLELISM);
+  }
+
+  public Cyborg(IDevice device, int captureParallelism) {
+    this.device = new CyborgDevice(device, captureParallelism);
+    this.idleDetector = new IdleDetector(this.device);
+    this.async = new CyborgAsync(this, this.device);
     getDeviceDisplaySize();
   }
 
+  /** Releases the threads used to capture view hierarchies on the paired device. */
+  public void shutdown() {
+    device.shutdown();
+  }
+
   private void getDeviceDisplaySize() {
-    deviceProxy.getDisplaySize(new IShellOutputReceiver() {
+    deviceProxy.getDisplaySize(device.getIDevice(), new IShellOutputReceiver() {
       @Override
       public void addOutput(byte[] data, int offset, int length) {
         String[] spacedPieces = new String(data).trim().split(" ");
@@ -67,28 +90,35 @@ public class Cyborg {
   }
 
   public void pressHome() {
-    deviceProxy.pressHome();
+    // Whichever client shows the home screen.
+    inputClient = null;
+    shell("input keyevent KEYCODE_HOME");
+    refreshSnapshots();
     onAfterUserInteraction();
   }
 
   public void pressKeyWithCode(int keyCode) {
-    DeviceProxy.getInstance().runShellCommand("input keyevent " + keyCode);
+    shell("input keyevent " + keyCode);
+    refreshSnapshots();
     onAfterUserInteraction();
   }
 
   public void pressKeyWithCode(int keyCode, int waitTime) {
-    DeviceProxy.getInstance().runShellCommand("input keyevent " + keyCode);
+    shell("input keyevent " + keyCode);
+    refreshSnapshots();
     onAfterUserInteraction(waitTime);
   }
 
   public RawImage getScreenshot() {
-    return DeviceProxy.getInstance().getScreenshot();
+    return deviceProxy.getScreenshot(device.getIDevice());
   }
 
 
   public void wait(int milliseconds) {
     try {
       TimeUnit.MILLISECONDS.sleep(milliseconds);
+      // Whatever was on screen may have changed while we slept.
+      refreshSnapshots();
     } catch (InterruptedException e) {
       StringWriter sw = new StringWriter();
       PrintWriter pw = new PrintWriter(sw);
@@ -97,23 +127,97 @@ public class Cyborg {
     }
   }
 
+  /**
+   * Waits for the screen to settle after input, at most for the idle detector's bound, if it is
+   * enabled. Sleeps for {@link IdleDetector#FIXED_WAIT_MILLIS} otherwise.
+   */
   public void onAfterUserInteraction() {
-    onAfterUserInteraction(300);
+    if (idleDetector.isEnabled()) {
+      idleDetector.waitForIdle(inputClient);
+    } else {
+      onAfterUserInteraction((int) IdleDetector.FIXED_WAIT_MILLIS);
+    }
   }
 
   public void onAfterUserInteraction(int waitTime) {
     this.wait(waitTime);
   }
 
+  /** Returns the non-blocking variants of the calls of this class. */
+  public CyborgAsync async() {
+    return async;
+  }
+
+  /** Returns the idle detector run after input, to configure it or read its statistics. */
+  public IdleDetector getIdleDetector() {
+    return idleDetector;
+  }
+
   public boolean isElementWithFilterVisible(Filter filter) {
-    List<ViewNode> nodes = ViewHierarchySnapshotter.getNodesForFilter(device, filter);
-    return nodes.size() > 0;
+    return exists(filter);
   }
 
   public List<ViewNode> getNodesForObjectsWithFilter(Filter filter) {
     return ViewHierarchySnapshotter.getNodesForFilter(device, filter);
   }
 
+  /**
+   * Returns up to {@code limit} nodes matching the filter, without waiting for the windows that
+   * are not needed to find them.
+   */
+  public List<ViewNode> findNodes(Filter filter, int limit) {
+    return ViewHierarchySnapshotter.findNodes(device, filter, limit);
+  }
+
+  /** Returns the first node found to match the filter, or null if there is none. */
+  public ViewNode findFirst(Filter filter) {
+    return ViewHierarchySnapshotter.findFirst(device, filter);
+  }
+
+  public boolean exists(Filter filter) {
+    return ViewHierarchySnapshotter.exists(device, filter);
+  }
+
+  /**
+   * Waits until a view matching the filter is visible, and returns whether it was before the
+   * timeout. The screen is only captured again when cheap probes show it changed, or every
+   * half second otherwise.
+   */
+  public boolean waitUntilVisible(Filter filter, long timeoutMillis) {
+    return waitForVisibility(filter, true, timeoutMillis);
+  }
+
+  /** Waits until no view matching the filter is visible, like {@link #waitUntilVisible}. */
+  public boolean waitUntilHidden(Filter filter, long timeoutMillis) {
+    return waitForVisibility(filter, false, timeoutMillis);
+  }
+
+  private boolean waitForVisibility(final Filter filter, final boolean visible,
+      long timeoutMillis) {
+    return new ScreenWaiter(device).waitUntil(new ScreenWaiter.Condition() {
+      @Override
+      public boolean isMet() {
+        return exists(filter) == visible;
+      }
+    }, timeoutMillis);
+  }
+
+  /**
+   * Evaluates all the given filters against a single capture of the screen, so that several
+   * assertions can be checked against one consistent state.
+   */
+  public QueryResult query(Filter... filters) {
+    return ViewHierarchySnapshotter.query(device, filters);
+  }
+
+  /**
+   * Describes how the filters would be evaluated against the current windows: which are looked
+   * up in an index and which need a traversal, the order operands are tested in and their cost.
+   */
+  public String explain(Filter... filters) {
+    return ViewHierarchySnapshotter.explain(device, filters);
+  }
+
   public List<Rect> getRectsForObjectsWithFilter(Filter filter) {
     List<Rect> rects = new ArrayList<>();
     List<ViewNode> nodes = ViewHierarchySnapshotter.getNodesForFilter(device, filter);
@@ -123,24 +227,178 @@ public class Cyborg {
     return rects;
   }
 
+  /** Returns the bounds of the node on the display, as computed when it was captured. */
   public static Rect getRectForNode(ViewNode node) {
     return ViewHierarchySnapshotter.findVisibleRect(node);
   }
 
+  /**
+   * Returns a snapshot of every window, which {@link HierarchyDiff#of(WindowSnapshot,
+   * WindowSnapshot)} can compare to a later one of the same window.
+   */
+  public List<WindowSnapshot> getSnapshots() {
+    return ViewHierarchySnapshotter.getSnapshots(device);
+  }
+
+  /** Returns the shown views containing the given point of the display. */
+  public List<ViewNode> getNodesAt(int x, int y) {
+    List<ViewNode> nodes = new ArrayList<>();
+    for (WindowSnapshot snapshot : ViewHierarchySnapshotter.getSnapshots(device)) {
+      nodes.addAll(snapshot.getSpatialIndex().findViewsAt(x, y));
+    }
+    return nodes;
+  }
+
+  /** Returns the shown views whose bounds intersect the given rect. */
+  public List<ViewNode> getNodesIntersecting(Rect rect) {
+    List<ViewNode> nodes = new ArrayList<>();
+    for (WindowSnapshot snapshot : ViewHierarchySnapshotter.getSnapshots(device)) {
+      nodes.addAll(snapshot.getSpatialIndex().findViewsIntersecting(rect));
+    }
+    return nodes;
+  }
+
+  /** Returns the shown clickable view closest to the given point, or null if there is none. */
+  public ViewNode getNearestClickableNode(int x, int y) {
+    Filter clickable = Filter.clickable();
+    ViewNode nearest = null;
+    long nearestDistance = Long.MAX_VALUE;
+    for (WindowSnapshot snapshot : ViewHierarchySnapshotter.getSnapshots(device)) {
+      ViewNode node = snapshot.getSpatialIndex().findNearest(x, y, clickable);
+      if (node == null) {
+        continue;
+      }
+      long distance = getRectForNode(node).distanceSquaredTo(x, y);
+      if (distance < nearestDistance) {
+        nearest = node;
+        nearestDistance = distance;
+      }
+    }
+    return nearest;
+  }
+
   public void tapOnRect(Rect rect) {
     Point toClick = rect.getCenter();
+    inputClient = ViewHierarchySnapshotter.findCachedClientAt(device, toClick.x, toClick.y);
     // System.err.println("Tap on (" + toClick.x + ", " + toClick.y + ")");
-    DeviceProxy.getInstance().runShellCommand("input tap " + toClick.x + " " + toClick.y);
-    // Built-in half-second wait after tapping.
+    shell("input tap " + toClick.x + " " + toClick.y);
+    refreshSnapshots();
+    // Wait for the screen to react to the tap.
     onAfterUserInteraction();
   }
 
   public void dragAndDrop(Rect src, Rect dest, int time) {
-    DeviceProxy.getInstance().runShellCommand("input draganddrop " + src.getCenter().x + " " +
+    shell("input draganddrop " + src.getCenter().x + " " +
         src.getCenter().y + " " + dest.getCenter().x + " " + dest.getCenter().y + " " + time);
+    refreshSnapshots();
   }
 
+  /**
+   * Runs any command, even one spanning lines or reading its input, in a shell of its own. Use
+   * {@link #submitShellCommand} for quick single line commands.
+   */
   public void runShellCommand(String command) {
-    deviceProxy.runShellCommand(command);
+    deviceProxy.runShellCommand(device.getIDevice(), command);
+    refreshSnapshots();
+  }
+
+  /**
+   * Runs a single line command in the shell kept open on the device, after the commands
+   * submitted before it, without waiting for it to complete. The future holds its output.
+   * Cached snapshots are not refreshed, see {@link #refreshSnapshots()}.
+   */
+  public CompletableFuture<String> submitShellCommand(String command) {
+    try {
+      return device.getShellChannel().submit(command);
+    } catch (IOException e) {
+      CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  /** Returns an empty batch of input steps, sent to the device together. */
+  public InputBatch newInputBatch() {
+    return new InputBatch(this);
+  }
+
+  /**
+   * Runs the commands of an input batch one after the other, then waits for the screen. They are
+   * given the usual timeout on top of the time they take at least.
+   */
+  void runInput(List<String> commands, long durationMillis) {
+    ShellChannel channel = null;
+    try {
+      channel = device.getShellChannel();
+    } catch (IOException e) {
+      for (String command : commands) {
+        deviceProxy.runShellCommand(device.getIDevice(), command);
+      }
+    }
+    if (channel != null) {
+      // Commands run in order, so waiting for all of them is waiting for the last one.
+      CompletableFuture<String> last = null;
+      for (String command : commands) {
+        last = channel.submit(command);
+      }
+      await(channel, last, commands.get(commands.size() - 1),
+          TimeUnit.SECONDS.toMillis(SHELL_TIMEOUT_SECONDS) + durationMillis);
+    }
+    refreshSnapshots();
+    onAfterUserInteraction();
+  }
+
+  /** Runs a command and waits for it, through a new ADB shell if no session can be opened. */
+  private void shell(String command) {
+    ShellChannel channel;
+    try {
+      channel = device.getShellChannel();
+    } catch (IOException e) {
+      deviceProxy.runShellCommand(device.getIDevice(), command);
+      return;
+    }
+    await(channel, channel.submit(command), command,
+        TimeUnit.SECONDS.toMillis(SHELL_TIMEOUT_SECONDS));
+  }
+
+  private static void await(ShellChannel channel, CompletableFuture<String> result,
+      String command, long timeoutMillis) {
+    try {
+      result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      System.err.println(e.getCause());
+    } catch (java.util.concurrent.TimeoutException e) {
+      System.err.println("Timed out running '" + command + "'");
+      // The session is stuck behind the command, so the next one gets a new session.
+      channel.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Drops every cached window snapshot, so that the next query captures the screen again. Input
+   * sent through this class does this automatically.
+   */
+  public void refreshSnapshots() {
+    device.getSnapshotCache().invalidate();
+    device.getWindowListCache().invalidate();
+  }
+
+  /**
+   * Sets how long captured window snapshots and window lists may be reused by subsequent
+   * queries. A value of zero or less disables reuse.
+   */
+  public void setSnapshotTtl(long ttl, TimeUnit unit) {
+    device.getSnapshotCache().setTtlMillis(unit.toMillis(ttl));
+    device.getWindowListCache().setTtlMillis(unit.toMillis(ttl));
+  }
+
+  /**
+   * Keeps captured hierarchies as {@link CompactSnapshot}s, which are much smaller to retain and
+   * faster to search. Views are only created for the nodes a query returns.
+   */
+  public void setCompactSnapshots(boolean compactSnapshots) {
+    device.setCompactSnapshots(compactSnapshots);
   }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import com.android.ddmlib.RawImage;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Non-blocking variants of the {@link Cyborg} calls, so that independent operations such as a
+ * screenshot and a hierarchy query run at the same time and compose as futures.
+ *
+ * <p>Calls run on a thread pool of the device, and their window captures on its capture
+ * executor as usual. Cancelling a future, or letting it reach its deadline, interrupts the call.
+ * Obtained from {@link Cyborg#async()}.
+ */
+public class CyborgAsync {
+
+  private final Cyborg cyborg;
+  private final CyborgDevice device;
+
+  CyborgAsync(Cyborg cyborg, CyborgDevice device) {
+    this.cyborg = cyborg;
+    this.device = device;
+  }
+
+  public CompletableFuture<QueryResult> query(final Filter... filters) {
+    return supply(new Callable<QueryResult>() {
+      @Override
+      public QueryResult call() {
+        return cyborg.query(filters);
+      }
+    });
+  }
+
+  public CompletableFuture<List<ViewNode>> findNodes(final Filter filter, final int limit) {
+    return supply(new Callable<List<ViewNode>>() {
+      @Override
+      public List<ViewNode> call() {
+        return cyborg.findNodes(filter, limit);
+      }
+    });
+  }
+
+  public CompletableFuture<ViewNode> findFirst(final Filter filter) {
+    return supply(new Callable<ViewNode>() {
+      @Override
+      public ViewNode call() {
+        return cyborg.findFirst(filter);
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> exists(final Filter filter) {
+    return supply(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return cyborg.exists(filter);
+      }
+    });
+  }
+
+  public CompletableFuture<List<WindowSnapshot>> getSnapshots() {
+    return supply(new Callable<List<WindowSnapshot>>() {
+      @Override
+      public List<WindowSnapshot> call() {
+        return cyborg.getSnapshots();
+      }
+    });
+  }
+
+  public CompletableFuture<RawImage> getScreenshot() {
+    return supply(new Callable<RawImage>() {
+      @Override
+      public RawImage call() {
+        return cyborg.getScreenshot();
+      }
+    });
+  }
+
+  /** Taps the center of the rect, completing once the screen settled. */
+  public CompletableFuture<Void> tapOnRect(final Rect rect) {
+    return supply(new Callable<Void>() {
+      @Override
+      public Void call() {
+        cyborg.tapOnRect(rect);
+        return null;
+      }
+    });
+  }
+
+  /** Sends the batch, completing once the screen settled. */
+  public CompletableFuture<Void> send(final InputBatch batch) {
+    return supply(new Callable<Void>() {
+      @Override
+      public Void call() {
+        batch.send();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs the command in the device's persistent shell, after those submitted before it, without
+   * using a thread while it runs. The future holds the command's output.
+   */
+  public CompletableFuture<String> runShellCommand(String command) {
+    return cyborg.submitShellCommand(command).thenApply(new Function<String, String>() {
+      @Override
+      public String apply(String output) {
+        cyborg.refreshSnapshots();
+        return output;
+      }
+    });
+  }
+
+  /** Completes with whether a view matching the filter became visible within the timeout. */
+  public CompletableFuture<Boolean> waitUntilVisible(final Filter filter,
+      final long timeoutMillis) {
+    return supply(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return cyborg.waitUntilVisible(filter, timeoutMillis);
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> waitUntilHidden(final Filter filter,
+      final long timeoutMillis) {
+    return supply(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return cyborg.waitUntilHidden(filter, timeoutMillis);
+      }
+    });
+  }
+
+  /**
+   * Runs any blocking work, such as collecting logs, on the same threads as the other calls.
+   * The work is interrupted if the future is cancelled or fails.
+   */
+  public <T> CompletableFuture<T> supply(final Callable<T> work) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final Future<?> running = device.getAsyncExecutor().submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.complete(work.call());
+        } catch (Throwable t) {
+          result.completeExceptionally(t);
+        }
+      }
+    });
+    result.whenComplete(new BiConsumer<T, Throwable>() {
+      @Override
+      public void accept(T value, Throwable failure) {
+        if (failure != null) {
+          // Cancelled or past its deadline; the work may still be running.
+          running.cancel(true);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns the future, failed with a {@link TimeoutException} if it does not complete within
+   * the given time. Calls of this class are then interrupted.
+   */
+  public <T> CompletableFuture<T> withDeadline(final CompletableFuture<T> future, long timeout,
+      TimeUnit unit) {
+    final ScheduledFuture<?> deadline = device.getDeadlineScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        future.completeExceptionally(new TimeoutException("Deadline passed"));
+      }
+    }, timeout, unit);
+    future.whenComplete(new BiConsumer<T, Throwable>() {
+      @Override
+      public void accept(T value, Throwable failure) {
+        deadline.cancel(false);
+      }
+    });
+    return future;
+  }
+}
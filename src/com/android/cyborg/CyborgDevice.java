@@ -16,24 +16,256 @@
 
 package com.android.cyborg;
 
+import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
 import com.android.ddmlib.IDevice;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CyborgDevice {
 
+  /** Number of windows captured in parallel unless configured otherwise. */
+  public static final int DEFAULT_CAPTURE_PARALLELISM = 10;
+
   private final IDevice iDevice;
+  private final int captureParallelism;
+  private ExecutorService captureExecutor;
+  private ExecutorService asyncExecutor;
+  private ScheduledExecutorService deadlineScheduler;
+  private final CaptureBufferPool captureBufferPool;
+  private final SnapshotCache snapshotCache = new SnapshotCache();
+  private final WindowListCache windowListCache;
+  private Client[] indexedClients = new Client[0];
+  private Map<String, List<Client>> clientsByPackage = Collections.emptyMap();
+  private List<Client> clientsWithUnknownPackage = Collections.emptyList();
+  private volatile boolean compactSnapshots;
+  private volatile boolean lazyStrings;
+  private ShellChannel shellChannel;
   public int displayWidth;
   public int displayHeight;
 
   public CyborgDevice(IDevice iDevice) {
+    this(iDevice, DEFAULT_CAPTURE_PARALLELISM);
+  }
+
+  public CyborgDevice(IDevice iDevice, int captureParallelism) {
+    if (captureParallelism < 1) {
+      throw new IllegalArgumentException("Capture parallelism must be positive: " +
+          captureParallelism);
+    }
     this.iDevice = iDevice;
+    this.captureParallelism = captureParallelism;
+    this.captureBufferPool = new CaptureBufferPool(captureParallelism);
+    this.windowListCache = new WindowListCache(iDevice);
+    AndroidDebugBridge.addClientChangeListener(windowListCache);
   }
 
   public Client[] getClients() {
     return iDevice.getClients();
   }
 
+  /**
+   * Returns the clients that may belong to the given package: those whose process name is the
+   * package, or starts with it followed by ':', plus those whose name is not known yet.
+   */
+  public synchronized List<Client> getClientsForPackage(String pkg) {
+    Client[] clients = getClients();
+    if (!clientsWithUnknownPackage.isEmpty() || !Arrays.equals(clients, indexedClients)) {
+      indexClients(clients);
+    }
+    List<Client> matching = new ArrayList<>(clientsWithUnknownPackage);
+    List<Client> forPackage = clientsByPackage.get(pkg);
+    if (forPackage != null) {
+      matching.addAll(forPackage);
+    }
+    return matching;
+  }
+
+  private void indexClients(Client[] clients) {
+    Map<String, List<Client>> byPackage = new HashMap<>();
+    List<Client> unknown = new ArrayList<>();
+    for (Client client : clients) {
+      String pkg = getPackage(client.getClientData());
+      if (pkg == null) {
+        unknown.add(client);
+        continue;
+      }
+      List<Client> forPackage = byPackage.get(pkg);
+      if (forPackage == null) {
+        forPackage = new ArrayList<>();
+        byPackage.put(pkg, forPackage);
+      }
+      forPackage.add(client);
+    }
+    indexedClients = clients;
+    clientsByPackage = byPackage;
+    clientsWithUnknownPackage = unknown;
+  }
+
+  private static String getPackage(ClientData clientData) {
+    // Not getPackageName(), which throws until the client reported its name.
+    String pkg = clientData.getClientDescription();
+    if (pkg == null || pkg.isEmpty()) {
+      return null;
+    }
+    // Processes declared with android:process are named "<package>:<name>".
+    int colon = pkg.indexOf(':');
+    return colon == -1 ? pkg : pkg.substring(0, colon);
+  }
+
+  /** Returns the device that commands of this instance go to. */
+  IDevice getIDevice() {
+    return iDevice;
+  }
+
   public String getSerialNumber() {
     return iDevice.getSerialNumber();
   }
+
+  public int getCaptureParallelism() {
+    return captureParallelism;
+  }
+
+  /**
+   * Returns the executor used to capture and search window hierarchies. It is created on first
+   * use and lives until {@link #shutdown()} is called, so repeated queries reuse its threads.
+   */
+  synchronized ExecutorService getCaptureExecutor() {
+    if (captureExecutor == null || captureExecutor.isShutdown()) {
+      captureExecutor = Executors.newFixedThreadPool(captureParallelism,
+          new DaemonThreadFactory("capture-" + getSerialNumber()));
+    }
+    return captureExecutor;
+  }
+
+  /** Buffers that window dumps are received into, with their reuse statistics. */
+  public CaptureBufferPool getCaptureBufferPool() {
+    return captureBufferPool;
+  }
+
+  /**
+   * Returns the executor running the calls of the asynchronous API. It is separate from the
+   * capture executor, as those calls wait on captures that need its threads.
+   */
+  synchronized ExecutorService getAsyncExecutor() {
+    if (asyncExecutor == null || asyncExecutor.isShutdown()) {
+      asyncExecutor = Executors.newCachedThreadPool(
+          new DaemonThreadFactory("async-" + getSerialNumber()));
+    }
+    return asyncExecutor;
+  }
+
+  /** Returns the single thread that fails asynchronous calls once their deadline passes. */
+  synchronized ScheduledExecutorService getDeadlineScheduler() {
+    if (deadlineScheduler == null || deadlineScheduler.isShutdown()) {
+      deadlineScheduler = Executors.newSingleThreadScheduledExecutor(
+          new DaemonThreadFactory("deadline-" + getSerialNumber()));
+    }
+    return deadlineScheduler;
+  }
+
+  /** Whether captured hierarchies are kept in their {@link CompactSnapshot} form only. */
+  public boolean isCompactSnapshots() {
+    return compactSnapshots;
+  }
+
+  public void setCompactSnapshots(boolean compactSnapshots) {
+    this.compactSnapshots = compactSnapshots;
+  }
+
+  /**
+   * Whether string properties of encoded dumps are only decoded when first read. Captures then
+   * allocate less, but each snapshot keeps its whole dump in memory, in a buffer that is not
+   * reused by later captures.
+   */
+  public boolean isLazyStrings() {
+    return lazyStrings;
+  }
+
+  public void setLazyStrings(boolean lazyStrings) {
+    this.lazyStrings = lazyStrings;
+  }
+
+  /** Returns the shell session kept open on the device, opening a new one if there is none. */
+  synchronized ShellChannel getShellChannel() throws IOException {
+    if (shellChannel == null || shellChannel.isClosed()) {
+      shellChannel = ShellChannel.open(getSerialNumber());
+    }
+    return shellChannel;
+  }
+
+  SnapshotCache getSnapshotCache() {
+    return snapshotCache;
+  }
+
+  WindowListCache getWindowListCache() {
+    return windowListCache;
+  }
+
+  /**
+   * Closes the shell session and stops the capture threads, waiting briefly for in-flight
+   * captures to finish.
+   */
+  public void shutdown() {
+    AndroidDebugBridge.removeClientChangeListener(windowListCache);
+    ExecutorService executor;
+    synchronized (this) {
+      if (shellChannel != null) {
+        shellChannel.close();
+        shellChannel = null;
+      }
+      executor = captureExecutor;
+      captureExecutor = null;
+      if (asyncExecutor != null) {
+        asyncExecutor.shutdownNow();
+        asyncExecutor = null;
+      }
+      if (deadlineScheduler != null) {
+        deadlineScheduler.shutdownNow();
+        deadlineScheduler = null;
+      }
+    }
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      // Daemon threads, so a test that never calls shutdown() can still exit.
+      Thread thread = new Thread(r, "cyborg-" + name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
 }
@@ -27,6 +27,7 @@ import java.util.List;
 public class CyborgTest {
 
   private static CyborgTestOptions DEFAULT_OPTIONS;
+  private static final long DEVICE_TIMEOUT_MILLIS = 60000;
   private CyborgTestMethod currentTestMethod;
   private final CyborgTestOptions options;
   protected Cyborg cyborg;
@@ -46,18 +47,30 @@ public class CyborgTest {
 
   public void setCyborg(Cyborg cyborg) {
     this.cyborg = cyborg;
+    cyborg.getIdleDetector().setEnabled(options.waitForIdle);
   }
 
   public List<Rect> getRectsForObjectsWithFilter(Filter filter) {
     return cyborg.getRectsForObjectsWithFilter(filter);
   }
 
+  public QueryResult query(Filter... filters) {
+    return cyborg.query(filters);
+  }
+
   private void tapOnRect(Rect rect) {
     cyborg.tapOnRect(rect);
   }
 
   public void tapOnObjectWithFilter(Filter filter) {
-    List<Rect> rects = cyborg.getRectsForObjectsWithFilter(filter);
+    // Two matches are enough to know the tap is ambiguous, all of them are only listed then.
+    List<Rect> rects = new ArrayList<>();
+    for (ViewNode node : cyborg.findNodes(filter, 2)) {
+      rects.add(Cyborg.getRectForNode(node));
+    }
+    if (rects.size() > 1) {
+      rects = cyborg.getRectsForObjectsWithFilter(filter);
+    }
     try {
       if (rects.size() == 0) {
         fail("Can't find object to tap on for " + filter);
@@ -89,26 +102,9 @@ public class CyborgTest {
   }
 
   private void waitUntilObjectIsVisible(Filter filter, int timeout, boolean visible) {
-    if ((visible && hasVisibleObjectWithFilter(filter)) ||
-        (!visible && !hasVisibleObjectWithFilter(filter))) {
-      return;
-    }
-    int minStepTime = 100;
-    int steps = 10;
-    int stepTime = timeout / steps;
-    if (stepTime < minStepTime) {
-      steps = timeout / minStepTime;
-      stepTime = minStepTime;
-    }
-    for (int i = steps; i > 0; i--) {
-      cyborg.wait(stepTime);
-      if ((visible && hasVisibleObjectWithFilter(filter)) ||
-          (!visible && !hasVisibleObjectWithFilter(filter))) {
-        break;
-      }
-    }
-    if ((visible && !hasVisibleObjectWithFilter(filter)) ||
-        (!visible && hasVisibleObjectWithFilter(filter))) {
+    boolean met = visible ? cyborg.waitUntilVisible(filter, timeout)
+        : cyborg.waitUntilHidden(filter, timeout);
+    if (!met) {
       try {
         fail("Timed out waiting for object to " + (visible ? "" : "dis") + "appear: " + filter);
       } catch (Exception e) {
@@ -117,12 +113,8 @@ public class CyborgTest {
     }
   }
 
-  private boolean hasVisibleObjectWithFilter(Filter filter) {
-    return cyborg.isElementWithFilterVisible(filter);
-  }
-
   public String getTextForObjectWithFilter(Filter filter) {
-    List<ViewNode> nodes = cyborg.getNodesForObjectsWithFilter(filter);
+    List<ViewNode> nodes = getOnlyNode(filter);
     if (nodes.size() != 1) {
       try {
         fail("Was expecting exactly one object, but found " + nodes.size());
@@ -132,14 +124,11 @@ public class CyborgTest {
       return null;
     }
     ViewNode node = nodes.get(0);
-    if (!node.namedProperties.containsKey("text:text")) {
-      return null;
-    }
-    return node.namedProperties.get("text:text").value;
+    return node.getString(PropertySymbols.TEXT);
   }
 
   public String getContentDescriptionForObjectWithFilter(Filter filter) {
-    List<ViewNode> nodes = cyborg.getNodesForObjectsWithFilter(filter);
+    List<ViewNode> nodes = getOnlyNode(filter);
     if (nodes.size() != 1) {
       try {
         fail("Was expecting exactly one object, but found " + nodes.size());
@@ -149,10 +138,13 @@ public class CyborgTest {
       return null;
     }
     ViewNode node = nodes.get(0);
-    if (!node.namedProperties.containsKey("accessibility:contentDescription")) {
-      return null;
-    }
-    return node.namedProperties.get("accessibility:contentDescription").value;
+    return node.getString(PropertySymbols.CONTENT_DESCRIPTION);
+  }
+
+  /** Returns the node matching the filter if it is the only one, or all the matching nodes. */
+  private List<ViewNode> getOnlyNode(Filter filter) {
+    List<ViewNode> nodes = cyborg.findNodes(filter, 2);
+    return nodes.size() > 1 ? cyborg.getNodesForObjectsWithFilter(filter) : nodes;
   }
 
   public void assertTrue(boolean condition) throws Exception {
@@ -289,6 +281,10 @@ public class CyborgTest {
     boolean plural = testMethods.size() > 1;
     System.err.println("\n" + passed + " of " + testMethods.size() +
         " test" + (plural ? "s" : "") + " passed.");
+    if (cyborg.getIdleDetector().isEnabled()) {
+      System.err.println("Input: " + cyborg.getIdleDetector() + ".");
+    }
+    cyborg.shutdown();
     System.exit(0);
   }
 
@@ -303,6 +299,16 @@ public class CyborgTest {
   }
 
   public void init() {
+    if (options.serial != null) {
+      Cyborg cyborg = new DevicePool().acquire(options.serial, DEVICE_TIMEOUT_MILLIS);
+      if (cyborg == null) {
+        System.err.println("Device " + options.serial + " is not connected.");
+        System.exit(1);
+      }
+      setCyborg(cyborg);
+      runTests(this);
+      return;
+    }
     DeviceProxy.getInstance().getFirstConnectedDevice(new DeviceReadyCallback() {
       @Override
       public void onDeviceReady(IDevice device) {
@@ -2,4 +2,11 @@ package com.android.cyborg;
 
 public class CyborgTestOptions {
   public boolean printStackTrace;
+  /** Serial number of the device to run on, or null for the first device ready. */
+  public String serial;
+  /**
+   * Whether to wait for the screen to settle after input instead of a fixed sleep, printing how
+   * long the waits took in total, so both can be compared on an application.
+   */
+  public boolean waitForIdle;
 }
@@ -17,27 +17,43 @@
 package com.android.cyborg;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Decoder {
     // Prefixes for simple primitives. These match the JNI definitions.
-    private static final byte SIG_BOOLEAN = 'Z';
-    private static final byte SIG_BYTE = 'B';
-    private static final byte SIG_SHORT = 'S';
-    private static final byte SIG_INT = 'I';
-    private static final byte SIG_LONG = 'J';
-    private static final byte SIG_FLOAT = 'F';
-    private static final byte SIG_DOUBLE = 'D';
+    static final byte SIG_BOOLEAN = 'Z';
+    static final byte SIG_BYTE = 'B';
+    static final byte SIG_SHORT = 'S';
+    static final byte SIG_INT = 'I';
+    static final byte SIG_LONG = 'J';
+    static final byte SIG_FLOAT = 'F';
+    static final byte SIG_DOUBLE = 'D';
 
     // Prefixes for some commonly used objects
-    private static final byte SIG_STRING = 'R';
+    static final byte SIG_STRING = 'R';
 
-    private static final byte SIG_MAP = 'M'; // a map with an short key
+    static final byte SIG_MAP = 'M'; // a map with an short key
     private static final short SIG_END_MAP = 0;
 
+    /** Key returned by {@link #readMapKey()} at the end of a map. */
+    public static final short END_MAP = SIG_END_MAP;
+
+    // Strings up to this many bytes are shared through sStrings: class names, ids, resource
+    // names and enum values, which repeat across views and captures.
+    private static final int MAX_SHARED_STRING_LENGTH = 64;
+
+    // A direct mapped cache, written without locking by every capture thread. Entries are
+    // immutable, so a race at worst loses one of them.
+    private static final SharedString[] sStrings = new SharedString[4096];
+
     private final ByteBuffer mBuf;
+    private final List<PropertyMap> mScratchMaps = new ArrayList<PropertyMap>();
+    private int mMapDepth;
+    private boolean mLazyStrings;
+    private byte[] mStringScratch = new byte[256];
 
     public Decoder(byte[] buf) {
         this(ByteBuffer.wrap(buf));
@@ -47,6 +63,14 @@ public class Decoder {
         mBuf = buf;
     }
 
+    /**
+     * Whether long string values read by {@link #readValue} are kept as views over the buffer,
+     * only decoded when first read. This only applies to buffers backed by an array.
+     */
+    public void setLazyStrings(boolean lazyStrings) {
+        mLazyStrings = lazyStrings;
+    }
+
     public boolean hasRemaining() {
         return mBuf.hasRemaining();
     }
@@ -78,31 +102,173 @@ public class Decoder {
         }
     }
 
+    /** Returns the signature of the next object without consuming it. */
+    public byte peekSignature() {
+        return mBuf.get(mBuf.position());
+    }
+
+    /** Whether the next object is a map. */
+    public boolean isNextMap() {
+        return peekSignature() == SIG_MAP;
+    }
+
+    /** Consumes the signature that starts a map, so that its entries can be read one by one. */
+    public void beginMap() {
+        byte sig = mBuf.get();
+        if (sig != SIG_MAP) {
+            throw new DecoderException(sig, mBuf.position() - 1);
+        }
+    }
+
+    /**
+     * Reads the key of the next entry of the current map, or returns {@link #END_MAP} once all
+     * the entries have been read.
+     */
+    public short readMapKey() {
+        byte sig = mBuf.get();
+        if (sig != SIG_SHORT) {
+            throw new DecoderException("Expected short key, got " + (char) sig);
+        }
+        return mBuf.getShort();
+    }
+
     private String readString() {
         short len = mBuf.getShort();
-        byte[] b = new byte[len];
-        mBuf.get(b, 0, len);
-        return new String(b, Charset.forName("utf-8"));
+        if (mBuf.hasArray()) {
+            int offset = mBuf.arrayOffset() + mBuf.position();
+            mBuf.position(mBuf.position() + len);
+            return decodeString(mBuf.array(), offset, len);
+        }
+        if (mStringScratch.length < len) {
+            mStringScratch = new byte[Math.max(len, mStringScratch.length * 2)];
+        }
+        mBuf.get(mStringScratch, 0, len);
+        return decodeString(mStringScratch, 0, len);
+    }
+
+    private Object readStringValue() {
+        // Short strings are shared, which is cheaper than deferring them.
+        if (!mLazyStrings || !mBuf.hasArray()
+                || mBuf.getShort(mBuf.position()) <= MAX_SHARED_STRING_LENGTH) {
+            return readString();
+        }
+        short len = mBuf.getShort();
+        int offset = mBuf.arrayOffset() + mBuf.position();
+        mBuf.position(mBuf.position() + len);
+        return new LazyString(mBuf.array(), offset, len);
+    }
+
+    /** Decodes UTF-8 bytes, sharing one instance between the short strings seen before. */
+    static String decodeString(byte[] data, int offset, int length) {
+        int hash = length;
+        boolean ascii = true;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+            ascii &= data[i] >= 0;
+        }
+        if (length > MAX_SHARED_STRING_LENGTH) {
+            return newString(data, offset, length, ascii);
+        }
+        int slot = (hash ^ (hash >>> 12)) & (sStrings.length - 1);
+        SharedString shared = sStrings[slot];
+        if (shared != null && shared.mHash == hash && shared.matches(data, offset, length)) {
+            return shared.mValue;
+        }
+        String value = newString(data, offset, length, ascii);
+        sStrings[slot] = new SharedString(hash, data, offset, length, value);
+        return value;
     }
 
-    private Map<Short, Object> readMap() {
-        Map<Short, Object> m = new HashMap<Short, Object>();
+    private static String newString(byte[] data, int offset, int length, boolean ascii) {
+        // ASCII is its own Latin-1 encoding, which decodes as a plain copy.
+        return new String(data, offset, length,
+                ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    private PropertyMap readMap() {
+        // Entries are collected in a scratch map reused by every map at the same depth, and
+        // only copied once their count is known.
+        if (mMapDepth == mScratchMaps.size()) {
+            mScratchMaps.add(new PropertyMap(128));
+        }
+        PropertyMap m = mScratchMaps.get(mMapDepth++);
+
+        try {
+            while (true) {
+                short key = readMapKey();
+                if (key == SIG_END_MAP) {
+                    break;
+                }
 
-        while (true) {
-            Object o = readObject();
-            if (!(o instanceof Short)) {
-                throw new DecoderException("Expected short key, got " + o.getClass());
+                readValue(m, key);
             }
 
-            Short key = (Short)o;
-            if (key == SIG_END_MAP) {
+            return m.copy();
+        } finally {
+            m.clear();
+            mMapDepth--;
+        }
+    }
+
+    /** Reads the next object and adds it to the given map under the given key, without boxing. */
+    public void readValue(PropertyMap m, short key) {
+        byte sig = mBuf.get();
+
+        switch (sig) {
+            case SIG_BOOLEAN:
+                m.putPrimitive(key, sig, mBuf.get() == 0 ? 0 : 1);
                 break;
-            }
+            case SIG_BYTE:
+                m.putPrimitive(key, sig, mBuf.get());
+                break;
+            case SIG_SHORT:
+                m.putPrimitive(key, sig, mBuf.getShort());
+                break;
+            case SIG_INT:
+                m.putPrimitive(key, sig, mBuf.getInt());
+                break;
+            case SIG_LONG:
+                m.putPrimitive(key, sig, mBuf.getLong());
+                break;
+            case SIG_FLOAT:
+                m.putPrimitive(key, sig, Float.floatToRawIntBits(mBuf.getFloat()));
+                break;
+            case SIG_DOUBLE:
+                m.putPrimitive(key, sig, Double.doubleToRawLongBits(mBuf.getDouble()));
+                break;
+            case SIG_STRING:
+                m.putRef(key, sig, readStringValue());
+                break;
+            case SIG_MAP:
+                m.putRef(key, sig, readMap());
+                break;
+            default:
+                throw new DecoderException(sig, mBuf.position() - 1);
+        }
+    }
 
-            m.put(key, readObject());
+    private static final class SharedString {
+        final int mHash;
+        final byte[] mBytes;
+        final String mValue;
+
+        SharedString(int hash, byte[] data, int offset, int length, String value) {
+            mHash = hash;
+            mBytes = Arrays.copyOfRange(data, offset, offset + length);
+            mValue = value;
         }
 
-        return m;
+        boolean matches(byte[] data, int offset, int length) {
+            if (mBytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mBytes[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     public static class DecoderException extends RuntimeException {
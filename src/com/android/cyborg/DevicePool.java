@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the connected devices, each to one user at a time, so that a process can drive many
+ * devices at once. A device is handed out as its {@link Cyborg}, which is kept between leases so
+ * that its threads and caches are reused.
+ *
+ * <pre>
+ *   Cyborg cyborg = pool.acquire(DevicePool.emulator(), 60000);
+ *   try {
+ *     ...
+ *   } finally {
+ *     pool.release(cyborg);
+ *   }
+ * </pre>
+ */
+public class DevicePool implements AndroidDebugBridge.IDeviceChangeListener {
+
+  /** What a device must offer to be handed out. */
+  public interface Requirement {
+    boolean isMetBy(IDevice device);
+  }
+
+  private static final Requirement ANY = new Requirement() {
+    @Override
+    public boolean isMetBy(IDevice device) {
+      return true;
+    }
+  };
+
+  private final DeviceProxy proxy;
+  private final int captureParallelism;
+
+  // The cyborg of each connected device that was handed out once.
+  private final Map<IDevice, Cyborg> cyborgs = new HashMap<>();
+  private final Set<IDevice> leased = new HashSet<>();
+  private final Map<Cyborg, IDevice> leases = new HashMap<>();
+  private boolean shutdown;
+
+  public DevicePool() {
+    this(CyborgDevice.DEFAULT_CAPTURE_PARALLELISM);
+  }
+
+  /** Creates a pool whose cyborgs capture windows with the given parallelism. */
+  public DevicePool(int captureParallelism) {
+    this.proxy = DeviceProxy.getInstance();
+    this.captureParallelism = captureParallelism;
+    proxy.addDeviceChangeListener(this);
+  }
+
+  /**
+   * Waits for any free device to be ready, and returns its cyborg. Returns null if there is none
+   * before the timeout.
+   */
+  public Cyborg acquire(long timeoutMillis) {
+    return acquire(ANY, timeoutMillis);
+  }
+
+  /** Waits for the device with the given serial number, like {@link #acquire(long)}. */
+  public Cyborg acquire(String serial, long timeoutMillis) {
+    return acquire(serial(serial), timeoutMillis);
+  }
+
+  /**
+   * Waits for a free, ready device meeting the requirement, like {@link #acquire(long)}. The
+   * requirement is checked again whenever a device changes, such as when its properties load.
+   */
+  public Cyborg acquire(Requirement requirement, long timeoutMillis) {
+    IDevice device = lease(requirement, timeoutMillis);
+    if (device == null) {
+      return null;
+    }
+    Cyborg cyborg;
+    synchronized (this) {
+      cyborg = cyborgs.get(device);
+    }
+    if (cyborg == null) {
+      // Outside the lock, as this asks the device for its display size.
+      try {
+        cyborg = new Cyborg(device, captureParallelism);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          leased.remove(device);
+          notifyAll();
+        }
+        throw e;
+      }
+    }
+    synchronized (this) {
+      // Unless the device went away meanwhile, which release() then tells by its absence.
+      if (!shutdown && proxy.getConnectedDevices().contains(device)) {
+        cyborgs.put(device, cyborg);
+      }
+      leases.put(cyborg, device);
+    }
+    return cyborg;
+  }
+
+  private synchronized IDevice lease(Requirement requirement, long timeoutMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (!shutdown) {
+      for (IDevice device : proxy.getConnectedDevices()) {
+        if (!leased.contains(device) && DeviceProxy.isReady(device)
+            && requirement.isMetBy(device)) {
+          leased.add(device);
+          return device;
+        }
+      }
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        return null;
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    throw new IllegalStateException("The device pool was shut down");
+  }
+
+  /** Gives a cyborg back to the pool, for another caller to acquire its device. */
+  public void release(Cyborg cyborg) {
+    boolean disconnected;
+    synchronized (this) {
+      IDevice device = leases.remove(cyborg);
+      if (device == null) {
+        throw new IllegalArgumentException("Not acquired from this pool: " + cyborg);
+      }
+      leased.remove(device);
+      disconnected = cyborgs.get(device) != cyborg;
+      notifyAll();
+    }
+    if (disconnected) {
+      cyborg.shutdown();
+    }
+  }
+
+  /** Returns the serial numbers of the devices handed out now. */
+  public synchronized List<String> getLeasedSerialNumbers() {
+    List<String> serials = new ArrayList<>();
+    for (IDevice device : leased) {
+      serials.add(device.getSerialNumber());
+    }
+    return serials;
+  }
+
+  /** Stops handing out devices, and releases the threads of the cyborgs not in use. */
+  public void shutdown() {
+    proxy.removeDeviceChangeListener(this);
+    List<Cyborg> idle = new ArrayList<>();
+    synchronized (this) {
+      shutdown = true;
+      for (Map.Entry<IDevice, Cyborg> entry : cyborgs.entrySet()) {
+        if (!leased.contains(entry.getKey())) {
+          idle.add(entry.getValue());
+        }
+      }
+      cyborgs.clear();
+      notifyAll();
+    }
+    for (Cyborg cyborg : idle) {
+      cyborg.shutdown();
+    }
+  }
+
+  @Override
+  public synchronized void deviceConnected(IDevice device) {
+    notifyAll();
+  }
+
+  @Override
+  public void deviceDisconnected(IDevice device) {
+    Cyborg idle = null;
+    synchronized (this) {
+      Cyborg cyborg = cyborgs.remove(device);
+      // A leased cyborg is shut down when released, as it may still be in use.
+      if (cyborg != null && !leased.contains(device)) {
+        idle = cyborg;
+      }
+    }
+    if (idle != null) {
+      idle.shutdown();
+    }
+  }
+
+  @Override
+  public synchronized void deviceChanged(IDevice device, int changeMask) {
+    notifyAll();
+  }
+
+  public static Requirement serial(final String serial) {
+    return new Requirement() {
+      @Override
+      public boolean isMetBy(IDevice device) {
+        return serial.equals(device.getSerialNumber());
+      }
+    };
+  }
+
+  public static Requirement emulator() {
+    return new Requirement() {
+      @Override
+      public boolean isMetBy(IDevice device) {
+        return device.isEmulator();
+      }
+    };
+  }
+
+  /** Requires a system property, such as "ro.product.model", to have the given value. */
+  public static Requirement property(final String name, final String value) {
+    return new Requirement() {
+      @Override
+      public boolean isMetBy(IDevice device) {
+        return value.equals(device.getProperty(name));
+      }
+    };
+  }
+
+  public static Requirement minApiLevel(final int apiLevel) {
+    return new Requirement() {
+      @Override
+      public boolean isMetBy(IDevice device) {
+        String level = device.getProperty(IDevice.PROP_BUILD_API_LEVEL);
+        try {
+          return level != null && Integer.parseInt(level) >= apiLevel;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    };
+  }
+
+  /** Requires all the given requirements. */
+  public static Requirement allOf(final Requirement... requirements) {
+    return new Requirement() {
+      @Override
+      public boolean isMetBy(IDevice device) {
+        for (Requirement requirement : requirements) {
+          if (!requirement.isMetBy(device)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+}
@@ -26,9 +26,16 @@ import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Tracks the devices connected to ADB, and runs commands on a given one of them. Any number of
+ * devices can be used at once, each by its own {@link Cyborg}; {@link DevicePool} hands them out.
+ */
 public class DeviceProxy implements AndroidDebugBridge.IDeviceChangeListener,
     IShellOutputReceiver {
 
@@ -39,9 +46,12 @@ public class DeviceProxy implements AndroidDebugBridge.IDeviceChangeListener,
 
   private static DeviceProxy mInstance;
   private DeviceReadyCallback callback;
-  private Set<IDevice> mConnectedDevices = new HashSet<>();
+  // In the order they connected, so that the first device stays the same.
+  private final Set<IDevice> mConnectedDevices = new LinkedHashSet<>();
+  private final List<AndroidDebugBridge.IDeviceChangeListener> mListeners =
+      new CopyOnWriteArrayList<>();
 
-  static DeviceProxy getInstance() {
+  static synchronized DeviceProxy getInstance() {
     if (mInstance == null) {
       mInstance = new DeviceProxy();
     }
@@ -52,62 +62,106 @@ public class DeviceProxy implements AndroidDebugBridge.IDeviceChangeListener,
     AndroidDebugBridge.addDeviceChangeListener(this);
   }
 
+  /** Calls back with the first device that has clients, once there is one. */
   void getFirstConnectedDevice(DeviceReadyCallback callback) {
-    this.callback = callback;
-    if (mConnectedDevices.size() > 0) {
-      this.callback.onDeviceReady((IDevice) mConnectedDevices.toArray()[0]);
+    IDevice ready = null;
+    synchronized (this) {
+      for (IDevice device : mConnectedDevices) {
+        if (isReady(device)) {
+          ready = device;
+          break;
+        }
+      }
+      if (ready == null) {
+        this.callback = callback;
+      }
+    }
+    if (ready != null) {
+      callback.onDeviceReady(ready);
     } else {
       System.err.println("Waiting for a device to connect...");
     }
   }
 
+  /** Returns the devices connected now, in the order they connected. */
+  synchronized List<IDevice> getConnectedDevices() {
+    return new ArrayList<>(mConnectedDevices);
+  }
+
+  /** Returns whether commands can be run on the device and its apps can be inspected. */
+  static boolean isReady(IDevice device) {
+    return device.isOnline() && device.getClients().length > 0;
+  }
+
+  /** Adds a listener told of the changes to any device, after this proxy saw them. */
+  void addDeviceChangeListener(AndroidDebugBridge.IDeviceChangeListener listener) {
+    mListeners.add(listener);
+  }
+
+  void removeDeviceChangeListener(AndroidDebugBridge.IDeviceChangeListener listener) {
+    mListeners.remove(listener);
+  }
+
   @Override
   public void deviceConnected(IDevice device) {
-    mConnectedDevices.add(device);
-    // System.err.println("Connected " + device + ", now " + mConnectedDevices.size() + " connected devices.");
+    synchronized (this) {
+      mConnectedDevices.add(device);
+    }
+    for (AndroidDebugBridge.IDeviceChangeListener listener : mListeners) {
+      listener.deviceConnected(device);
+    }
   }
 
   @Override
   public void deviceDisconnected(IDevice device) {
-    if (mConnectedDevices.contains(device)) {
+    int connected;
+    synchronized (this) {
       mConnectedDevices.remove(device);
+      connected = mConnectedDevices.size();
+    }
+    System.err.println("Disconnected " + device + ", now " + connected + " connected devices.");
+    for (AndroidDebugBridge.IDeviceChangeListener listener : mListeners) {
+      listener.deviceDisconnected(device);
     }
-    System.err.println("Disconnected " + device + ", now " + mConnectedDevices.size() + " connected devices.");
   }
 
   @Override
   public void deviceChanged(IDevice device, int changeMask) {
-    int nClients = getFirstDevice().getClients().length;
-    if (callback != null && nClients > 0) {
-      handleDeviceReady();
+    DeviceReadyCallback ready = null;
+    synchronized (this) {
+      if (callback != null && isReady(device)) {
+        ready = callback;
+        callback = null;
+      }
+    }
+    if (ready != null) {
+      ready.onDeviceReady(device);
+    }
+    for (AndroidDebugBridge.IDeviceChangeListener listener : mListeners) {
+      listener.deviceChanged(device, changeMask);
     }
   }
 
-  private void handleDeviceReady() {
-    AndroidDebugBridge.removeDeviceChangeListener(this);
-    callback.onDeviceReady(getFirstDevice());
-    callback = null;
-  }
-
-  private IDevice getFirstDevice() {
-    return (IDevice) mConnectedDevices.toArray()[0];
-  }
-
-  void pressHome() {
-    runShellCommand("input keyevent KEYCODE_HOME");
+  private synchronized IDevice getFirstDevice() {
+    return mConnectedDevices.iterator().next();
   }
 
-  void getDisplaySize(IShellOutputReceiver receiver) {
+  void getDisplaySize(IDevice device, IShellOutputReceiver receiver) {
     try {
-      getFirstDevice().executeShellCommand("wm size", receiver);
+      device.executeShellCommand("wm size", receiver);
     } catch (Exception e) {
       System.err.println(e.getCause());
     }
   }
 
+  /** Takes a screenshot of the first connected device. */
   public RawImage getScreenshot() {
+    return getScreenshot(getFirstDevice());
+  }
+
+  public RawImage getScreenshot(IDevice device) {
     try {
-      return getFirstDevice().getScreenshot();
+      return device.getScreenshot();
     } catch (TimeoutException e) {
       e.printStackTrace();
     } catch (AdbCommandRejectedException e) {
@@ -118,9 +172,14 @@ public class DeviceProxy implements AndroidDebugBridge.IDeviceChangeListener,
     return null;
   }
 
+  /** Runs the command on the first connected device. */
   public void runShellCommand(String command) {
+    runShellCommand(getFirstDevice(), command);
+  }
+
+  public void runShellCommand(IDevice device, String command) {
     try {
-      getFirstDevice().executeShellCommand(command, this);
+      device.executeShellCommand(command, this);
     } catch (Exception e) {
       System.err.println(e.getCause());
     }
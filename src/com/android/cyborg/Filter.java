@@ -17,13 +17,79 @@
 package com.android.cyborg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public abstract class Filter {
 
+  /** What a filter tests, so that queries can be planned around it. */
+  enum Kind {
+    ANY, ID, TEXT, CONTENT_DESCRIPTION_START, CONTENT_DESCRIPTION_END, CLASS_NAME, PARENT_ID,
+    NTH_CHILD, CLICKABLE, FOCUSED, AND, OR, CUSTOM
+  }
+
+  private final Kind kind;
+  private final Object[] arguments;
+
+  public Filter() {
+    this(Kind.CUSTOM);
+  }
+
+  Filter(Kind kind, Object... arguments) {
+    this.kind = kind;
+    this.arguments = arguments;
+  }
+
   public abstract boolean apply(ViewNode node);
   abstract String getShortDesc();
 
+  Kind getKind() {
+    return kind;
+  }
+
+  /** Returns the filters combined by an and() or or() filter, and none for other filters. */
+  List<Filter> getOperands() {
+    List<Filter> operands = new ArrayList<>();
+    if (kind == Kind.AND || kind == Kind.OR) {
+      for (Object argument : arguments) {
+        operands.add((Filter) argument);
+      }
+    }
+    return operands;
+  }
+
+  /**
+   * Returns a key equal to that of any filter testing the same thing. Custom filters are only
+   * known to be equal to themselves.
+   */
+  Object getKey() {
+    if (kind == Kind.CUSTOM) {
+      return this;
+    }
+    List<Object> key = new ArrayList<>();
+    key.add(kind);
+    for (Object argument : arguments) {
+      key.add(argument instanceof Filter ? ((Filter) argument).getKey() : argument);
+    }
+    return key;
+  }
+
+  /**
+   * Applies the filter to a view of a compact snapshot. Filters that do not override this are
+   * applied to the view as a {@link ViewNode}.
+   */
+  public boolean apply(CompactSnapshot snapshot, int view) {
+    return apply(snapshot.getNode(view));
+  }
+
+  /**
+   * Returns the views of the index that may match, in depth-first order, or null if every view
+   * has to be looked at. The views returned are still checked with {@link #apply}.
+   */
+  int[] candidates(SnapshotIndex index) {
+    return null;
+  }
+
   public String pkg;
   public String activity;
 
@@ -32,14 +98,31 @@ public abstract class Filter {
     return "<Filter for " + getShortDesc() + ">";
   }
 
+  /** Whether views of the window with the given title can match this filter at all. */
+  boolean matchesWindow(String windowTitle) {
+    String[] pieces = windowTitle.split("/");
+    if (pieces.length > 0 && pkg != null && !pieces[0].equals(pkg)) {
+      return false;
+    }
+    if (pieces.length > 1 && activity != null && !pieces[1].equals(activity)) {
+      return false;
+    }
+    return true;
+  }
+
   public static Filter empty() {
-    return new Filter() {
+    return new Filter(Kind.ANY) {
 
       @Override
       public boolean apply(ViewNode node) {
         return true;
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        return true;
+      }
+
       @Override
       String getShortDesc() {
         return "empty filter (matches all nodes)";
@@ -48,12 +131,22 @@ public abstract class Filter {
   }
 
   public static Filter withId(String id) {
-    return new Filter() {
+    return new Filter(Kind.ID, id) {
       @Override
       public boolean apply(ViewNode node) {
         return idEquals(node, id);
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        return idEquals(snapshot.getId(view), id);
+      }
+
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        return index.findById("id/" + id);
+      }
+
       @Override
       String getShortDesc() {
         return "id='" + id + "'";
@@ -62,13 +155,24 @@ public abstract class Filter {
   }
 
   public static Filter withContentDescriptionStart(String text) {
-    return new Filter() {
+    return new Filter(Kind.CONTENT_DESCRIPTION_START, text) {
       @Override
       public boolean apply(ViewNode node) {
-        String description = node.namedProperties.get("accessibility:contentDescription").value;
+        String description = node.getString(PropertySymbols.CONTENT_DESCRIPTION);
+        return description != null && description.startsWith(text);
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        String description = snapshot.getString(view, PropertySymbols.CONTENT_DESCRIPTION);
         return description != null && description.startsWith(text);
       }
 
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        return index.findByContentDescriptionStart(text);
+      }
+
       @Override
       String getShortDesc() {
         return "contentDesc='" + text + "...'";
@@ -77,13 +181,24 @@ public abstract class Filter {
   }
 
   public static Filter withContentDescriptionEnd(String text) {
-    return new Filter() {
+    return new Filter(Kind.CONTENT_DESCRIPTION_END, text) {
       @Override
       public boolean apply(ViewNode node) {
-        String description = node.namedProperties.get("accessibility:contentDescription").value;
+        String description = node.getString(PropertySymbols.CONTENT_DESCRIPTION);
+        return description != null && description.endsWith(text);
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        String description = snapshot.getString(view, PropertySymbols.CONTENT_DESCRIPTION);
         return description != null && description.endsWith(text);
       }
 
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        return index.findByContentDescriptionEnd(text);
+      }
+
       @Override
       String getShortDesc() {
         return "contentDesc='..." + text + "'";
@@ -92,14 +207,22 @@ public abstract class Filter {
   }
 
   public static Filter withText(String searchText) {
-    return new Filter() {
+    return new Filter(Kind.TEXT, searchText) {
       @Override
       public boolean apply(ViewNode node) {
-        if (!node.namedProperties.containsKey("text:text")) {
-          return false;
-        }
-        String text = node.namedProperties.get("text:text").value;
-        return text.trim().equals(searchText.trim());
+        String text = node.getString(PropertySymbols.TEXT);
+        return text != null && text.trim().equals(searchText.trim());
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        String text = snapshot.getString(view, PropertySymbols.TEXT);
+        return text != null && text.trim().equals(searchText.trim());
+      }
+
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        return index.findByText(searchText.trim());
       }
 
       @Override
@@ -109,8 +232,33 @@ public abstract class Filter {
     };
   }
 
+  /** Matches views of the given class, named in full or by its simple name. */
+  public static Filter withClassName(String className) {
+    return new Filter(Kind.CLASS_NAME, className) {
+      @Override
+      public boolean apply(ViewNode node) {
+        return classNameEquals(node.name, className);
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        return classNameEquals(snapshot.getName(view), className);
+      }
+
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        return index.findByClassName(className);
+      }
+
+      @Override
+      String getShortDesc() {
+        return "class='" + className + "'";
+      }
+    };
+  }
+
   public static Filter nthChildOfParentWithId(int n, String id) {
-    return new Filter() {
+    return new Filter(Kind.NTH_CHILD, n, id) {
       @Override
       public boolean apply(ViewNode node) {
         if (node.parent != null && idEquals(node.parent, id) &&
@@ -120,6 +268,29 @@ public abstract class Filter {
         return false;
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        int parent = snapshot.getParent(view);
+        return parent != CompactSnapshot.NO_VIEW && idEquals(snapshot.getId(parent), id) &&
+            snapshot.getChildIndex(view) == n;
+      }
+
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        int[] parents = index.findById("id/" + id);
+        int[] found = new int[parents.length];
+        int count = 0;
+        for (int parent : parents) {
+          int[] children = index.getChildren(parent);
+          if (n >= 0 && n < children.length) {
+            found[count++] = children[n];
+          }
+        }
+        found = Arrays.copyOf(found, count);
+        Arrays.sort(found);
+        return found;
+      }
+
       @Override
       String getShortDesc() {
         return "child #" + n + "of parent with id " + id;
@@ -128,11 +299,15 @@ public abstract class Filter {
   }
 
   public static Filter clickable() {
-    return new Filter() {
+    return new Filter(Kind.CLICKABLE) {
       @Override
       public boolean apply(ViewNode node) {
-        String clickable = node.namedProperties.get("misc:clickable").value;
-        return clickable.equals("true");
+        return node.getBoolean(PropertySymbols.CLICKABLE, false);
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        return snapshot.getBoolean(view, PropertySymbols.CLICKABLE, false);
       }
 
       @Override
@@ -143,11 +318,15 @@ public abstract class Filter {
   }
 
   public static Filter isFocused() {
-    return new Filter() {
+    return new Filter(Kind.FOCUSED) {
       @Override
       public boolean apply(ViewNode node) {
-        String isFocused = node.namedProperties.get("focus:isFocused").value;
-        return isFocused.equals("true");
+        return node.getBoolean(PropertySymbols.IS_FOCUSED, false);
+      }
+
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        return snapshot.getBoolean(view, PropertySymbols.IS_FOCUSED, false);
       }
 
       @Override
@@ -158,12 +337,30 @@ public abstract class Filter {
   }
 
   public static Filter withParentWithId(String id) {
-    return new Filter() {
+    return new Filter(Kind.PARENT_ID, id) {
       @Override
       public boolean apply(ViewNode node) {
         return node.parent != null && idEquals(node.parent, id);
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        int parent = snapshot.getParent(view);
+        return parent != CompactSnapshot.NO_VIEW && idEquals(snapshot.getId(parent), id);
+      }
+
+      @Override
+      int[] candidates(SnapshotIndex index) {
+        int[] found = new int[0];
+        for (int parent : index.findById("id/" + id)) {
+          int[] children = index.getChildren(parent);
+          found = Arrays.copyOf(found, found.length + children.length);
+          System.arraycopy(children, 0, found, found.length - children.length, children.length);
+        }
+        Arrays.sort(found);
+        return found;
+      }
+
       @Override
       String getShortDesc() {
         return "parentId='" + id + "'";
@@ -172,7 +369,7 @@ public abstract class Filter {
   }
 
   public static Filter and(Filter... filters) {
-    return new Filter() {
+    return new Filter(Kind.AND, (Object[]) filters) {
       @Override
       public boolean apply(ViewNode node) {
         for (Filter filter : filters) {
@@ -183,6 +380,16 @@ public abstract class Filter {
         return true;
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        for (Filter filter : filters) {
+          if (!filter.apply(snapshot, view)) {
+            return false;
+          }
+        }
+        return true;
+      }
+
       @Override
       String getShortDesc() {
         List<String> descriptions = new ArrayList<>();
@@ -195,7 +402,7 @@ public abstract class Filter {
   }
 
   public static Filter or(Filter... filters) {
-    return new Filter() {
+    return new Filter(Kind.OR, (Object[]) filters) {
       @Override
       public boolean apply(ViewNode node) {
         for (Filter filter : filters) {
@@ -206,6 +413,16 @@ public abstract class Filter {
         return false;
       }
 
+      @Override
+      public boolean apply(CompactSnapshot snapshot, int view) {
+        for (Filter filter : filters) {
+          if (filter.apply(snapshot, view)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
       @Override
       String getShortDesc() {
         List<String> descriptions = new ArrayList<>();
@@ -218,6 +435,22 @@ public abstract class Filter {
   }
 
   private static boolean idEquals(ViewNode node, String id) {
-    return node.id != null && node.id.equals("id/" + id);
+    return idEquals(node.id, id);
+  }
+
+  private static boolean idEquals(String viewId, String id) {
+    return viewId != null && viewId.equals("id/" + id);
+  }
+
+  private static boolean classNameEquals(String name, String className) {
+    if (name == null) {
+      return false;
+    }
+    if (name.equals(className)) {
+      return true;
+    }
+    int dot = name.lastIndexOf('.');
+    return dot != -1 && name.regionMatches(dot + 1, className, 0, className.length()) &&
+        name.length() - dot - 1 == className.length();
   }
 }
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The changes between two captures of the same window.
+ *
+ * <p>Views are matched by hash code, which identifies a view object for as long as it lives. A
+ * view whose hash code is missing or not unique is matched by name and index under the match of
+ * its parent instead. Matched views are moved if their parent changed or if their order among
+ * the views kept under that parent did, and changed if any of their properties did.
+ *
+ * <p>{@link #shareUnchangedProperties()} gives the unchanged views of the later capture the
+ * property arrays of the earlier one. Keeping a history of captures then only costs the views
+ * that changed.
+ */
+public class HierarchyDiff {
+
+  public enum ChangeType {
+    ADDED, REMOVED, MOVED, CHANGED
+  }
+
+  /** A change to a single view. A view that both moved and changed has one change of each. */
+  public static class Change {
+    private final ChangeType type;
+    private final ViewNode before;
+    private final ViewNode after;
+    private final List<String> changedProperties;
+
+    Change(ChangeType type, ViewNode before, ViewNode after, List<String> changedProperties) {
+      this.type = type;
+      this.before = before;
+      this.after = after;
+      this.changedProperties = changedProperties;
+    }
+
+    public ChangeType getType() {
+      return type;
+    }
+
+    /** The view in the earlier capture, or null if it was added. */
+    public ViewNode getBefore() {
+      return before;
+    }
+
+    /** The view in the later capture, or null if it was removed. */
+    public ViewNode getAfter() {
+      return after;
+    }
+
+    /** Names of the properties that differ, for a changed view. */
+    public List<String> getChangedProperties() {
+      return changedProperties;
+    }
+
+    @Override
+    public String toString() {
+      ViewNode node = after != null ? after : before;
+      return type + " " + node
+          + (type == ChangeType.CHANGED ? " " + changedProperties : "");
+    }
+  }
+
+  // Marks a hash code shared by several views of the earlier capture.
+  private static final ViewNode AMBIGUOUS = new ViewNode(null, null, 0);
+
+  private final Map<ViewNode, ViewNode> beforeByAfter = new IdentityHashMap<>();
+  private final Map<ViewNode, ViewNode> afterByBefore = new IdentityHashMap<>();
+  private final List<Change> changes = new ArrayList<>();
+  // Whether each view kept under the same parent changed order, filled in one parent at a time.
+  private final Map<ViewNode, Boolean> movedByOrder = new IdentityHashMap<>();
+  // Views of the later capture whose properties did not change.
+  private final List<ViewNode> sameProperties = new ArrayList<>();
+  private int unchangedCount;
+
+  private HierarchyDiff() {
+  }
+
+  /** Returns the changes from one capture of a window to a later one. */
+  public static HierarchyDiff of(WindowSnapshot before, WindowSnapshot after) {
+    return of(before.getRoot(), after.getRoot());
+  }
+
+  /** Returns the changes between two view trees, leaving both of them untouched. */
+  public static HierarchyDiff of(ViewNode before, ViewNode after) {
+    HierarchyDiff diff = new HierarchyDiff();
+    diff.match(before, after);
+    diff.compare(before, after);
+    return diff;
+  }
+
+  /**
+   * Gives every view of the later capture whose properties did not change the property arrays
+   * of its match in the earlier one, so that the later capture's own can be collected. Returns
+   * the number of views changed.
+   *
+   * <p>This changes the views of the later capture without synchronization, so it must only be
+   * called while no other thread reads them. For snapshots, that is once the caller is the only
+   * one holding them, after {@link Cyborg#refreshSnapshots()} dropped them from the cache.
+   */
+  public int shareUnchangedProperties() {
+    for (ViewNode after : sameProperties) {
+      ViewNode before = beforeByAfter.get(after);
+      after.setProperties(before.getShape(), before.getPropertyBits(),
+          before.getPropertyRefs());
+    }
+    return sameProperties.size();
+  }
+
+  /** Every change, additions, moves and changes in the later tree's order, then removals. */
+  public List<Change> getChanges() {
+    return Collections.unmodifiableList(changes);
+  }
+
+  public List<Change> getChanges(ChangeType type) {
+    List<Change> ofType = new ArrayList<>();
+    for (Change change : changes) {
+      if (change.type == type) {
+        ofType.add(change);
+      }
+    }
+    return ofType;
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /** Number of views that were neither moved nor changed. */
+  public int getUnchangedCount() {
+    return unchangedCount;
+  }
+
+  /** Returns the view of the earlier capture matched to a view of the later one, or null. */
+  public ViewNode getBefore(ViewNode after) {
+    return beforeByAfter.get(after);
+  }
+
+  /** Returns the view of the later capture matched to a view of the earlier one, or null. */
+  public ViewNode getAfter(ViewNode before) {
+    return afterByBefore.get(before);
+  }
+
+  private void match(ViewNode beforeRoot, ViewNode afterRoot) {
+    Map<String, ViewNode> beforeByHash = new HashMap<>();
+    for (ViewNode node : preOrder(beforeRoot)) {
+      if (node.hashCode != null && beforeByHash.put(node.hashCode, node) != null) {
+        beforeByHash.put(node.hashCode, AMBIGUOUS);
+      }
+    }
+    // Parents come first, so the fallback can look under the match of the parent.
+    for (ViewNode after : preOrder(afterRoot)) {
+      ViewNode before = after.hashCode != null ? beforeByHash.get(after.hashCode) : null;
+      if (before == null || before == AMBIGUOUS || afterByBefore.containsKey(before)) {
+        before = matchByPosition(beforeRoot, after);
+      }
+      if (before != null) {
+        beforeByAfter.put(after, before);
+        afterByBefore.put(before, after);
+      }
+    }
+  }
+
+  private ViewNode matchByPosition(ViewNode beforeRoot, ViewNode after) {
+    ViewNode candidate;
+    if (after.parent == null) {
+      candidate = beforeRoot;
+    } else {
+      ViewNode beforeParent = beforeByAfter.get(after.parent);
+      if (beforeParent == null || after.index >= beforeParent.children.size()) {
+        return null;
+      }
+      candidate = beforeParent.children.get(after.index);
+    }
+    if (afterByBefore.containsKey(candidate) || !Objects.equals(candidate.name, after.name)) {
+      return null;
+    }
+    return candidate;
+  }
+
+  private void compare(ViewNode beforeRoot, ViewNode afterRoot) {
+    for (ViewNode after : preOrder(afterRoot)) {
+      ViewNode before = beforeByAfter.get(after);
+      if (before == null) {
+        changes.add(new Change(ChangeType.ADDED, null, after, null));
+        continue;
+      }
+      boolean moved = isMoved(before, after);
+      if (moved) {
+        changes.add(new Change(ChangeType.MOVED, before, after, null));
+      }
+      List<String> changedProperties = getChangedProperties(before, after);
+      if (!changedProperties.isEmpty()) {
+        changes.add(new Change(ChangeType.CHANGED, before, after, changedProperties));
+      } else {
+        sameProperties.add(after);
+      }
+      if (!moved && changedProperties.isEmpty()) {
+        unchangedCount++;
+      }
+    }
+    for (ViewNode before : preOrder(beforeRoot)) {
+      if (!afterByBefore.containsKey(before)) {
+        changes.add(new Change(ChangeType.REMOVED, before, null, null));
+      }
+    }
+  }
+
+  private boolean isMoved(ViewNode before, ViewNode after) {
+    if (after.parent == null || before.parent == null) {
+      return after.parent != before.parent;
+    }
+    if (beforeByAfter.get(after.parent) != before.parent) {
+      return true;
+    }
+    if (!movedByOrder.containsKey(after)) {
+      findReordered(after.parent, before.parent);
+    }
+    return movedByOrder.get(after);
+  }
+
+  /**
+   * Marks which children kept under a parent changed order: the fewest that have to move for
+   * the others to stay in the same relative order, those outside a longest increasing run.
+   */
+  private void findReordered(ViewNode afterParent, ViewNode beforeParent) {
+    Map<ViewNode, Integer> beforeRanks = new IdentityHashMap<>();
+    for (ViewNode before : beforeParent.children) {
+      ViewNode after = afterByBefore.get(before);
+      if (after != null && after.parent == afterParent) {
+        beforeRanks.put(before, beforeRanks.size());
+      }
+    }
+    List<ViewNode> kept = new ArrayList<>();
+    int[] ranks = new int[beforeRanks.size()];
+    for (ViewNode after : afterParent.children) {
+      ViewNode before = beforeByAfter.get(after);
+      if (before != null && before.parent == beforeParent) {
+        ranks[kept.size()] = beforeRanks.get(before);
+        kept.add(after);
+      }
+    }
+    // Patience sorting, with links back to rebuild the run.
+    int[] tails = new int[ranks.length];
+    int[] previous = new int[ranks.length];
+    int length = 0;
+    for (int i = 0; i < ranks.length; i++) {
+      int low = 0;
+      int high = length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (ranks[tails[mid]] < ranks[i]) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      previous[i] = low > 0 ? tails[low - 1] : -1;
+      tails[low] = i;
+      length = Math.max(length, low + 1);
+    }
+    for (ViewNode after : kept) {
+      movedByOrder.put(after, true);
+    }
+    for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+      movedByOrder.put(kept.get(i), false);
+    }
+  }
+
+  private static List<String> getChangedProperties(ViewNode before, ViewNode after) {
+    PropertyShape beforeShape = before.getShape();
+    PropertyShape afterShape = after.getShape();
+    long[] beforeBits = before.getPropertyBits();
+    long[] afterBits = after.getPropertyBits();
+    Object[] beforeRefs = before.getPropertyRefs();
+    Object[] afterRefs = after.getPropertyRefs();
+    if (sameLayout(beforeShape, afterShape)) {
+      List<String> changed = null;
+      for (int slot = 0; slot < afterShape.size(); slot++) {
+        if (beforeBits[slot] != afterBits[slot]
+            || !sameRef(beforeRefs[slot], afterRefs[slot])) {
+          if (changed == null) {
+            changed = new ArrayList<>();
+          }
+          changed.add(PropertySymbols.name(afterShape.symbolAt(slot)));
+        }
+      }
+      return changed != null ? changed : Collections.<String>emptyList();
+    }
+    // The views do not have the same properties, compare them by name.
+    List<String> changed = new ArrayList<>();
+    for (int slot = 0; slot < afterShape.size(); slot++) {
+      int symbol = afterShape.symbolAt(slot);
+      int beforeSlot = beforeShape.slotOf(symbol);
+      if (beforeSlot < 0 || beforeShape.typeAt(beforeSlot) != afterShape.typeAt(slot)
+          || beforeBits[beforeSlot] != afterBits[slot]
+          || !sameRef(beforeRefs[beforeSlot], afterRefs[slot])) {
+        changed.add(PropertySymbols.name(symbol));
+      }
+    }
+    for (int slot = 0; slot < beforeShape.size(); slot++) {
+      if (afterShape.slotOf(beforeShape.symbolAt(slot)) < 0) {
+        changed.add(PropertySymbols.name(beforeShape.symbolAt(slot)));
+      }
+    }
+    return changed;
+  }
+
+  /** Whether both shapes hold the same properties with the same types in the same slots. */
+  private static boolean sameLayout(PropertyShape a, PropertyShape b) {
+    if (a == b) {
+      return true;
+    }
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int slot = 0; slot < a.size(); slot++) {
+      if (a.symbolAt(slot) != b.symbolAt(slot) || a.typeAt(slot) != b.typeAt(slot)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameRef(Object a, Object b) {
+    // Lazy strings are compared by value.
+    return a == b || (a != null && b != null && a.toString().equals(b.toString()));
+  }
+
+  private static List<ViewNode> preOrder(ViewNode root) {
+    List<ViewNode> nodes = new ArrayList<>();
+    Deque<ViewNode> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      ViewNode node = stack.pop();
+      nodes.add(node);
+      for (int i = node.children.size() - 1; i >= 0; i--) {
+        stack.push(node.children.get(i));
+      }
+    }
+    return nodes;
+  }
+}
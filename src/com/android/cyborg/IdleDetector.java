@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import com.android.ddmlib.Client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the screen of a device to settle after input, rather than sleeping for a fixed time.
+ * Disabled by default, see {@link #setEnabled}.
+ *
+ * <p>The windows of the client that received the input are captured back to back, and are idle
+ * once every capture over a quiet period looked the same: views with the same bounds,
+ * translations, visibility and text, so running animations keep it busy. Other clients do not
+ * count, however busy. A {@link ViewHierarchySnapshotter#probe probe} of the client's windows,
+ * backing off like those of {@link ScreenWaiter}, tells when to list its windows again. The last
+ * capture stays cached for the queries that follow. Waits never last longer than a configurable
+ * upper bound.
+ *
+ * <p>Every capture makes the application dump its views on its UI thread, which may itself delay
+ * the settling being waited for. Whether this beats the fixed sleep depends on the application,
+ * hence the statistics on the time spent waiting, compared with the fixed sleep it replaces.
+ */
+public class IdleDetector {
+
+  /** The fixed sleep that used to follow every interaction, as a baseline for statistics. */
+  public static final long FIXED_WAIT_MILLIS = 300;
+
+  public static final long DEFAULT_MAX_WAIT_MILLIS = 3000;
+
+  // Input takes a few milliseconds to reach the application, which only then starts reacting.
+  private static final long INPUT_DELAY_MILLIS = 30;
+
+  private static final long QUIET_MILLIS = 100;
+
+  // About a frame, so that captures do not keep the device busy.
+  private static final long CAPTURE_INTERVAL_MILLIS = 16;
+
+  private final CyborgDevice device;
+  private volatile boolean enabled;
+  private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+  private long waits;
+  private long timeouts;
+  private long totalWaitMillis;
+
+  IdleDetector(CyborgDevice device) {
+    this.device = device;
+  }
+
+  /** Sets whether input is followed by a wait for the screen, or by the fixed sleep. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Sets the longest a wait may last, however busy the screen stays. */
+  public void setMaxWait(long maxWait, TimeUnit unit) {
+    maxWaitMillis = unit.toMillis(maxWait);
+  }
+
+  /**
+   * Waits for the windows of the given client to settle, or of every client if it is null.
+   * Returns whether they did, as opposed to the wait reaching its upper bound.
+   */
+  boolean waitForIdle(Client client) {
+    long start = System.currentTimeMillis();
+    long deadline = start + maxWaitMillis;
+    boolean idle = false;
+    try {
+      sleepUntil(Math.min(start + INPUT_DELAY_MILLIS, deadline));
+      long captureStart = System.currentTimeMillis();
+      long probe = ViewHierarchySnapshotter.probe(device, client);
+      List<Window> windows = getWindows(client);
+      long fingerprint = capture(windows);
+      long stableSince = captureStart;
+      long probeInterval = ScreenWaiter.MIN_PROBE_INTERVAL_MILLIS;
+      long nextProbeMillis = captureStart + probeInterval;
+      while (System.currentTimeMillis() < deadline) {
+        sleepUntil(Math.min(System.currentTimeMillis() + CAPTURE_INTERVAL_MILLIS, deadline));
+        captureStart = System.currentTimeMillis();
+        if (captureStart >= nextProbeMillis) {
+          // Only tells when to list the windows again; a new window changes the capture anyway.
+          long nextProbe = ViewHierarchySnapshotter.probe(device, client);
+          if (nextProbe != probe) {
+            probe = nextProbe;
+            windows = getWindows(client);
+            probeInterval = ScreenWaiter.MIN_PROBE_INTERVAL_MILLIS;
+          } else {
+            probeInterval = Math.min(probeInterval * 2, ScreenWaiter.MAX_PROBE_INTERVAL_MILLIS);
+          }
+          nextProbeMillis = captureStart + probeInterval;
+        }
+        long next = capture(windows);
+        if (next != fingerprint) {
+          fingerprint = next;
+          stableSince = captureStart;
+        } else if (captureStart - stableSince >= QUIET_MILLIS) {
+          idle = true;
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    record(System.currentTimeMillis() - start, idle);
+    return idle;
+  }
+
+  /** Returns the windows to capture, those of every client if the given one has none. */
+  private List<Window> getWindows(Client client) {
+    // The probe just listed the windows, so this does not ask the clients again.
+    List<Window> windows = ViewHierarchySnapshotter.getWindows(device, client);
+    if (windows.isEmpty() && client != null) {
+      windows = ViewHierarchySnapshotter.getWindows(device, (Client) null);
+    }
+    return windows;
+  }
+
+  private long capture(List<Window> windows) {
+    device.getSnapshotCache().invalidate();
+    List<WindowSnapshot> snapshots = ViewHierarchySnapshotter.getSnapshots(device, windows);
+    long hash = snapshots.size();
+    for (WindowSnapshot snapshot : snapshots) {
+      hash = 31 * hash + snapshot.getFingerprint();
+    }
+    return hash;
+  }
+
+  private static void sleepUntil(long timeMillis) throws InterruptedException {
+    long delay = timeMillis - System.currentTimeMillis();
+    if (delay > 0) {
+      TimeUnit.MILLISECONDS.sleep(delay);
+    }
+  }
+
+  private synchronized void record(long waitMillis, boolean idle) {
+    waits++;
+    totalWaitMillis += waitMillis;
+    if (!idle) {
+      timeouts++;
+    }
+  }
+
+  /** Number of waits, one per interaction. */
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  /** Number of waits that reached the upper bound before the screen settled. */
+  public synchronized long getTimeouts() {
+    return timeouts;
+  }
+
+  public synchronized long getTotalWaitMillis() {
+    return totalWaitMillis;
+  }
+
+  /** Time saved compared with sleeping {@link #FIXED_WAIT_MILLIS} each time, possibly negative. */
+  public synchronized long getSavedMillis() {
+    return waits * FIXED_WAIT_MILLIS - totalWaitMillis;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "waited " + totalWaitMillis + " ms for the screen to settle after " + waits
+        + " interactions (" + timeouts + " timed out), saving " + getSavedMillis()
+        + " ms over fixed " + FIXED_WAIT_MILLIS + " ms waits";
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.awt.Point;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A sequence of key presses, taps, swipes, text and pauses sent to the device at once, as a
+ * single shell command line instead of one command per step.
+ *
+ * <p>Steps run in the order they were added. Consecutive key presses become a single
+ * {@code input keyevent} and consecutive text a single {@code input text}; pauses run on the
+ * device between the steps around them. Obtained from {@link Cyborg#newInputBatch()}.
+ */
+public class InputBatch {
+
+  // Longer command lines are split, each part following the previous one in the same shell. In
+  // bytes, as the device terminal cuts lines at about 4 KB.
+  static final int MAX_COMMAND_LENGTH = 4000;
+  // Longer text is typed by several steps. Quoting and UTF-8 take at most 4 bytes per char.
+  static final int MAX_TEXT_LENGTH = 500;
+
+  private static final Pattern KEY_NAME = Pattern.compile("[A-Z0-9_]+");
+  private static final String KEYCODE_ENTER = "66";
+
+  private final Cyborg cyborg;
+  private final List<String> steps = new ArrayList<>();
+  private final StringBuilder pendingKeys = new StringBuilder();
+  private final StringBuilder pendingText = new StringBuilder();
+  // How long the steps take on the device at least, from pauses and swipes.
+  private long durationMillis;
+
+  InputBatch(Cyborg cyborg) {
+    this.cyborg = cyborg;
+  }
+
+  /** Presses the given keys, one after the other. */
+  public InputBatch key(int... keyCodes) {
+    flushText();
+    for (int keyCode : keyCodes) {
+      pendingKeys.append(' ').append(keyCode);
+    }
+    return this;
+  }
+
+  /** Presses the given keys by name, such as {@code KEYCODE_ENTER}. */
+  public InputBatch key(String... keyNames) {
+    for (String keyName : keyNames) {
+      if (!KEY_NAME.matcher(keyName).matches()) {
+        throw new IllegalArgumentException("Not a key name: " + keyName);
+      }
+    }
+    flushText();
+    for (String keyName : keyNames) {
+      pendingKeys.append(' ').append(keyName);
+    }
+    return this;
+  }
+
+  public InputBatch tap(int x, int y) {
+    return add("input tap " + x + " " + y);
+  }
+
+  public InputBatch tap(Rect rect) {
+    Point center = rect.getCenter();
+    return tap(center.x, center.y);
+  }
+
+  public InputBatch swipe(int fromX, int fromY, int toX, int toY, int durationMillis) {
+    this.durationMillis += Math.max(durationMillis, 0);
+    return add("input swipe " + fromX + " " + fromY + " " + toX + " " + toY + " "
+        + durationMillis);
+  }
+
+  /** Types the text into the focused view. Line breaks press enter. */
+  public InputBatch text(String text) {
+    String[] lines = text.split("\r?\n|\r", -1);
+    for (int i = 0; i < lines.length; i++) {
+      if (i > 0) {
+        flushText();
+        pendingKeys.append(' ').append(KEYCODE_ENTER);
+      }
+      if (!lines[i].isEmpty()) {
+        flushKeys();
+        pendingText.append(lines[i]);
+      }
+    }
+    return this;
+  }
+
+  /** Pauses between the steps added before and after. */
+  public InputBatch delay(long millis) {
+    durationMillis += Math.max(millis, 0);
+    return add(String.format(Locale.US, "sleep %.3f", millis / 1000.0));
+  }
+
+  /** Returns the shell command lines that run the batch, usually a single one. */
+  public List<String> toCommands() {
+    flushKeys();
+    flushText();
+    List<String> commands = new ArrayList<>();
+    StringBuilder line = new StringBuilder();
+    int lineLength = 0;
+    for (String step : steps) {
+      int stepLength = step.getBytes(StandardCharsets.UTF_8).length;
+      if (lineLength > 0 && lineLength + stepLength + 3 > MAX_COMMAND_LENGTH) {
+        commands.add(line.toString());
+        line.setLength(0);
+        lineLength = 0;
+      }
+      if (lineLength > 0) {
+        line.append(" ; ");
+        lineLength += 3;
+      }
+      line.append(step);
+      lineLength += stepLength;
+    }
+    if (line.length() > 0) {
+      commands.add(line.toString());
+    }
+    return commands;
+  }
+
+  /**
+   * Sends the batch and waits for it to run, then for the screen to settle once. The batch is
+   * emptied and can be reused.
+   */
+  public void send() {
+    List<String> commands = toCommands();
+    long millis = durationMillis;
+    steps.clear();
+    durationMillis = 0;
+    if (!commands.isEmpty()) {
+      cyborg.runInput(commands, millis);
+    }
+  }
+
+  private InputBatch add(String step) {
+    flushKeys();
+    flushText();
+    steps.add(step);
+    return this;
+  }
+
+  private void flushKeys() {
+    if (pendingKeys.length() > 0) {
+      steps.add("input keyevent" + pendingKeys);
+      pendingKeys.setLength(0);
+    }
+  }
+
+  private void flushText() {
+    String text = pendingText.toString();
+    pendingText.setLength(0);
+    for (int start = 0; start < text.length(); ) {
+      int end = Math.min(start + MAX_TEXT_LENGTH, text.length());
+      if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+        end--;
+      }
+      steps.add("input text " + quote(text.substring(start, end).replace(" ", "%s")));
+      start = end;
+    }
+  }
+
+  /** Quotes the argument for the device shell. */
+  private static String quote(String argument) {
+    return "'" + argument.replace("'", "'\\''") + "'";
+  }
+}
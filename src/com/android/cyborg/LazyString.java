@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+/**
+ * A string value left undecoded in the dump it was read from, until it is first read. It keeps
+ * the whole dump alive for as long as it is reachable.
+ */
+final class LazyString {
+
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLength;
+
+    // Strings are immutable, so racing threads at worst decode the value twice.
+    private String mValue;
+
+    LazyString(byte[] data, int offset, int length) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public String toString() {
+        String value = mValue;
+        if (value == null) {
+            value = Decoder.decodeString(mData, mOffset, mLength);
+            mValue = value;
+        }
+        return value;
+    }
+}
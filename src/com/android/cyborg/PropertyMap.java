@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.Arrays;
+
+/**
+ * A map from short property keys to decoded values, stored in parallel arrays so that neither
+ * keys nor primitive values are boxed.
+ *
+ * <p>Entries keep the order in which they were decoded. Each one has a type, which is the
+ * {@link Decoder} signature it was read with: primitives are held as raw bits (floats and doubles
+ * as their IEEE 754 representation), strings and nested maps as references.
+ */
+public class PropertyMap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private short[] mKeys;
+    private byte[] mTypes;
+    private long[] mBits;
+    private Object[] mRefs;
+    private int mSize;
+
+    // Open addressing index from key to entry position + 1, built on the first lookup by key.
+    private int[] mSlots;
+
+    public PropertyMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PropertyMap(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mKeys = new short[capacity];
+        mTypes = new byte[capacity];
+        mBits = new long[capacity];
+        mRefs = new Object[capacity];
+    }
+
+    /** Returns a copy of this map sized to its entries, e.g. to keep what a scratch map holds. */
+    public PropertyMap copy() {
+        PropertyMap copy = new PropertyMap(mSize);
+        System.arraycopy(mKeys, 0, copy.mKeys, 0, mSize);
+        System.arraycopy(mTypes, 0, copy.mTypes, 0, mSize);
+        System.arraycopy(mBits, 0, copy.mBits, 0, mSize);
+        System.arraycopy(mRefs, 0, copy.mRefs, 0, mSize);
+        copy.mSize = mSize;
+        return copy;
+    }
+
+    /** Removes every entry, keeping the arrays for reuse. */
+    public void clear() {
+        Arrays.fill(mRefs, 0, mSize, null);
+        mSize = 0;
+        mSlots = null;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public short keyAt(int index) {
+        return mKeys[index];
+    }
+
+    public byte typeAt(int index) {
+        return mTypes[index];
+    }
+
+    /** Raw bits of a primitive entry. */
+    public long bitsAt(int index) {
+        return mBits[index];
+    }
+
+    public int intAt(int index) {
+        return (int) mBits[index];
+    }
+
+    public float floatAt(int index) {
+        return Float.intBitsToFloat((int) mBits[index]);
+    }
+
+    public boolean booleanAt(int index) {
+        return mBits[index] != 0;
+    }
+
+    /** The string or map held by an entry, or null for primitives. */
+    public Object refAt(int index) {
+        return mRefs[index];
+    }
+
+    /** Returns the value of an entry, boxing it if it is a primitive. */
+    public Object valueAt(int index) {
+        return box(mTypes[index], mBits[index], mRefs[index]);
+    }
+
+    /** The raw bits of every entry, without copying when the map is exactly full. */
+    long[] toBitsArray() {
+        return mSize == mBits.length ? mBits : Arrays.copyOf(mBits, mSize);
+    }
+
+    /** The references of every entry, without copying when the map is exactly full. */
+    Object[] toRefsArray() {
+        return mSize == mRefs.length ? mRefs : Arrays.copyOf(mRefs, mSize);
+    }
+
+    /** Returns the position of the entry with the given key, or -1 if there is none. */
+    public int indexOfKey(short key) {
+        if (mSlots == null) {
+            buildIndex();
+        }
+        int mask = mSlots.length - 1;
+        for (int slot = hash(key) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int index = mSlots[slot] - 1;
+            if (mKeys[index] == key) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsKey(short key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    /** Returns the boxed value for the given key, or null if there is none. */
+    public Object get(short key) {
+        int index = indexOfKey(key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    public void putPrimitive(short key, byte type, long bits) {
+        add(key, type, bits, null);
+    }
+
+    public void putRef(short key, byte type, Object ref) {
+        add(key, type, 0, ref);
+    }
+
+    private void add(short key, byte type, long bits, Object ref) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mBits = Arrays.copyOf(mBits, capacity);
+            mRefs = Arrays.copyOf(mRefs, capacity);
+        }
+        mKeys[mSize] = key;
+        mTypes[mSize] = type;
+        mBits[mSize] = bits;
+        mRefs[mSize] = ref;
+        mSize++;
+        mSlots = null;
+    }
+
+    private void buildIndex() {
+        int capacity = Integer.highestOneBit(Math.max(mSize, 1) * 2) * 2;
+        mSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < mSize; i++) {
+            // Like HashMap.put, a later entry for the same key wins.
+            int slot = hash(mKeys[i]) & mask;
+            while (mSlots[slot] != 0 && mKeys[mSlots[slot] - 1] != mKeys[i]) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = i + 1;
+        }
+    }
+
+    private static int hash(short key) {
+        return (key * 0x9E3779B9) >>> 16;
+    }
+
+    /** Boxes a decoded value, as {@link Decoder#readObject()} would have returned it. */
+    static Object box(byte type, long bits, Object ref) {
+        switch (type) {
+            case Decoder.SIG_BOOLEAN:
+                return bits != 0 ? Boolean.TRUE : Boolean.FALSE;
+            case Decoder.SIG_BYTE:
+                return (byte) bits;
+            case Decoder.SIG_SHORT:
+                return (short) bits;
+            case Decoder.SIG_INT:
+                return (int) bits;
+            case Decoder.SIG_LONG:
+                return bits;
+            case Decoder.SIG_FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case Decoder.SIG_DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return ref instanceof LazyString ? ref.toString() : ref;
+        }
+    }
+
+    static boolean toBoolean(byte type, long bits, Object ref) {
+        if (type == Decoder.SIG_BOOLEAN) {
+            return bits != 0;
+        }
+        return Boolean.parseBoolean(format(type, bits, ref));
+    }
+
+    static int toInt(byte type, long bits, Object ref, int defaultValue) {
+        switch (type) {
+            case Decoder.SIG_BYTE:
+            case Decoder.SIG_SHORT:
+            case Decoder.SIG_INT:
+                return (int) bits;
+            case Decoder.SIG_STRING:
+                try {
+                    return Integer.parseInt(String.valueOf(ref));
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return defaultValue;
+        }
+    }
+
+    static float toFloat(byte type, long bits, Object ref, float defaultValue) {
+        switch (type) {
+            case Decoder.SIG_BYTE:
+            case Decoder.SIG_SHORT:
+            case Decoder.SIG_INT:
+            case Decoder.SIG_LONG:
+                return bits;
+            case Decoder.SIG_FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case Decoder.SIG_DOUBLE:
+                return (float) Double.longBitsToDouble(bits);
+            case Decoder.SIG_STRING:
+                if (ref == null) {
+                    return defaultValue;
+                }
+                try {
+                    return Float.parseFloat(ref.toString());
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return defaultValue;
+        }
+    }
+
+    /** Formats a decoded value the way its boxed form would print. */
+    static String format(byte type, long bits, Object ref) {
+        switch (type) {
+            case Decoder.SIG_BOOLEAN:
+                return bits != 0 ? "true" : "false";
+            case Decoder.SIG_BYTE:
+            case Decoder.SIG_SHORT:
+            case Decoder.SIG_INT:
+            case Decoder.SIG_LONG:
+                return Long.toString(bits);
+            case Decoder.SIG_FLOAT:
+                return Float.toString(Float.intBitsToFloat((int) bits));
+            case Decoder.SIG_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            default:
+                return ref != null ? ref.toString() : "";
+        }
+    }
+}
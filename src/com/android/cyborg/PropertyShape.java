@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The ordered list of properties, with their types, that a view holds. Views of the same class
+ * usually have the same properties, so one shape is shared by many views and each view only
+ * keeps its values, in slots indexed through {@link #slotOf(int)}.
+ */
+final class PropertyShape {
+
+    static final PropertyShape EMPTY = new PropertyShape(new int[0], new byte[0]);
+
+    private final int[] mSymbols;
+    private final byte[] mTypes;
+
+    // Slot + 1 of each symbol, 0 if the shape does not have it.
+    private final int[] mSlotBySymbol;
+
+    private volatile Set<String> mCategories;
+
+    // Next shape with the same hash in a Cache bucket.
+    private PropertyShape mNext;
+
+    private PropertyShape(int[] symbols, byte[] types) {
+        mSymbols = symbols;
+        mTypes = types;
+        int maxSymbol = -1;
+        for (int symbol : symbols) {
+            maxSymbol = Math.max(maxSymbol, symbol);
+        }
+        mSlotBySymbol = new int[maxSymbol + 1];
+        for (int slot = 0; slot < symbols.length; slot++) {
+            // Like a map, the last entry for a repeated name wins.
+            mSlotBySymbol[symbols[slot]] = slot + 1;
+        }
+    }
+
+    int size() {
+        return mSymbols.length;
+    }
+
+    int symbolAt(int slot) {
+        return mSymbols[slot];
+    }
+
+    byte typeAt(int slot) {
+        return mTypes[slot];
+    }
+
+    /** Returns the slot holding the given property, or -1 if views of this shape lack it. */
+    int slotOf(int symbol) {
+        return symbol >= 0 && symbol < mSlotBySymbol.length ? mSlotBySymbol[symbol] - 1 : -1;
+    }
+
+    /** The property categories ("layout", "text"...) of this shape, plus miscellaneous. */
+    Set<String> getCategories() {
+        Set<String> categories = mCategories;
+        if (categories == null) {
+            TreeSet<String> set = new TreeSet<String>();
+            for (int symbol : mSymbols) {
+                String name = PropertySymbols.name(symbol);
+                int index = name.indexOf(':');
+                if (index != -1) {
+                    set.add(name.substring(0, index));
+                }
+            }
+            if (set.size() != 0) {
+                set.add(ViewNode.MISCELLANIOUS);
+            }
+            categories = Collections.unmodifiableSet(set);
+            mCategories = categories;
+        }
+        return categories;
+    }
+
+    private boolean matches(int[] symbols, byte[] types, int count) {
+        if (count != mSymbols.length) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (mSymbols[i] != symbols[i] || mTypes[i] != types[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Hands out a single instance per distinct shape. Not thread safe. */
+    static class Cache {
+        private final Map<Integer, PropertyShape> mShapes = new HashMap<Integer, PropertyShape>();
+        private int[] mSymbolScratch = new int[128];
+        private byte[] mTypeScratch = new byte[128];
+
+        /** Reusable array to collect the symbols of a shape before calling {@link #get}. */
+        int[] symbolScratch(int count) {
+            if (mSymbolScratch.length < count) {
+                mSymbolScratch = new int[count];
+            }
+            return mSymbolScratch;
+        }
+
+        /** Reusable array to collect the types of a shape before calling {@link #get}. */
+        byte[] typeScratch(int count) {
+            if (mTypeScratch.length < count) {
+                mTypeScratch = new byte[count];
+            }
+            return mTypeScratch;
+        }
+
+        /** Returns the shape made of the first {@code count} symbols and types. */
+        PropertyShape get(int[] symbols, byte[] types, int count) {
+            int hash = 1;
+            for (int i = 0; i < count; i++) {
+                hash = 31 * (31 * hash + symbols[i]) + types[i];
+            }
+            PropertyShape first = mShapes.get(hash);
+            for (PropertyShape shape = first; shape != null; shape = shape.mNext) {
+                if (shape.matches(symbols, types, count)) {
+                    return shape;
+                }
+            }
+            PropertyShape shape = new PropertyShape(Arrays.copyOf(symbols, count),
+                    Arrays.copyOf(types, count));
+            shape.mNext = first;
+            mShapes.put(hash, shape);
+            return shape;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns property names, such as "layout:left" or "text:text", to small integer ids shared by
+ * every snapshot. Views store their values in arrays indexed through these ids, so that code
+ * holding an id reads a property without hashing its name.
+ */
+public final class PropertySymbols {
+
+    /** Returned by {@link #lookup(String)} for names that were never interned. */
+    public static final int UNKNOWN = -1;
+
+    private static final Map<String, Integer> sIds = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] sNames = new String[512];
+    private static int sCount;
+
+    private PropertySymbols() {
+    }
+
+    /** Returns the id of the given name, assigning the next free one if it is new. */
+    public static int intern(String name) {
+        Integer id = sIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PropertySymbols.class) {
+            id = sIds.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] names = sNames;
+            if (sCount == names.length) {
+                names = Arrays.copyOf(names, sCount * 2);
+            }
+            // The name must be visible in sNames before its id is published.
+            names[sCount] = name;
+            sNames = names;
+            sIds.put(name, sCount);
+            return sCount++;
+        }
+    }
+
+    /** Returns the id of the given name, or {@link #UNKNOWN} if no view ever had it. */
+    public static int lookup(String name) {
+        Integer id = sIds.get(name);
+        return id != null ? id : UNKNOWN;
+    }
+
+    public static String name(int id) {
+        return sNames[id];
+    }
+
+    // Properties read while loading every encoded view.
+    static final int META_NAME = intern("meta:__name__");
+    static final int META_HASH = intern("meta:__hash__");
+    static final int ID = intern("id");
+
+    public static final int TEXT = intern("text:text");
+    public static final int CONTENT_DESCRIPTION = intern("accessibility:contentDescription");
+    public static final int CLICKABLE = intern("misc:clickable");
+    public static final int IS_FOCUSED = intern("focus:isFocused");
+    public static final int VISIBILITY = intern("misc:visibility");
+    public static final int WINDOW_LEFT = intern("window:left");
+    public static final int WINDOW_TOP = intern("window:top");
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * How a batch of filters is evaluated against a snapshot. Filters that are looked up in the
+ * {@link SnapshotIndex} only check their candidates, the others share a single traversal. Equal
+ * subexpressions of the batch are evaluated once per view, and the operands of {@code and} and
+ * {@code or} are tested in order of cost and selectivity.
+ */
+final class QueryPlan {
+  private final Filter[] filters;
+  private final Node[] roots;
+  private final List<Node> nodes = new ArrayList<>();
+
+  /** Plans the given filters. Null filters are skipped and get no results. */
+  QueryPlan(List<Filter> filters) {
+    this.filters = filters.toArray(new Filter[filters.size()]);
+    roots = new Node[this.filters.length];
+    Map<Object, Node> nodesByKey = new HashMap<>();
+    for (int i = 0; i < roots.length; i++) {
+      if (this.filters[i] != null) {
+        roots[i] = plan(this.filters[i], nodesByKey);
+      }
+    }
+  }
+
+  private Node plan(Filter filter, Map<Object, Node> nodesByKey) {
+    Object key = filter.getKey();
+    Node node = nodesByKey.get(key);
+    if (node == null) {
+      List<Node> operands = new ArrayList<>();
+      for (Filter operand : filter.getOperands()) {
+        operands.add(plan(operand, nodesByKey));
+      }
+      node = new Node(nodes.size(), filter, operands);
+      nodes.add(node);
+      nodesByKey.put(key, node);
+    }
+    node.uses++;
+    return node;
+  }
+
+  /** Returns the views matching each filter that a traversal of the shown views would find. */
+  List<List<ViewNode>> execute(SnapshotIndex index, int displayWidth, int displayHeight) {
+    return execute(index, displayWidth, displayHeight, Integer.MAX_VALUE);
+  }
+
+  /** Same as above, stopping for each filter once it has the given number of views. */
+  List<List<ViewNode>> execute(SnapshotIndex index, int displayWidth, int displayHeight,
+      int limit) {
+    Execution execution = new Execution(index, displayWidth, displayHeight);
+    List<List<ViewNode>> found = new ArrayList<>();
+    int[] scanned = new int[roots.length];
+    int scanCount = 0;
+    for (int i = 0; i < roots.length; i++) {
+      found.add(new ArrayList<ViewNode>());
+      Node root = roots[i];
+      if (root == null) {
+        continue;
+      }
+      int[] candidates = root.candidates(execution);
+      if (candidates == null) {
+        scanned[scanCount++] = i;
+        continue;
+      }
+      boolean exact = root.isExact(execution);
+      for (int c = 0; c < candidates.length && found.get(i).size() < limit; c++) {
+        int view = candidates[c];
+        if ((exact || root.test(execution, view)) && execution.isShown(view)) {
+          found.get(i).add(index.getNode(view));
+        }
+      }
+    }
+    if (scanCount == 0) {
+      return found;
+    }
+    // A single depth-first pass over the views, skipping the subtrees of hidden ones.
+    for (int view = 0; view < index.size() && scanCount > 0; ) {
+      if (!index.isVisible(view, displayWidth, displayHeight)) {
+        view += index.getSubtreeSize(view);
+        continue;
+      }
+      for (int s = 0; s < scanCount; s++) {
+        List<ViewNode> matches = found.get(scanned[s]);
+        if (roots[scanned[s]].test(execution, view)) {
+          matches.add(index.getNode(view));
+        }
+        if (matches.size() >= limit) {
+          // This filter is done, the others carry on.
+          scanned[s--] = scanned[--scanCount];
+        }
+      }
+      view++;
+    }
+    return found;
+  }
+
+  /** Describes how each filter would be evaluated against the indexed snapshot, and its cost. */
+  String explain(SnapshotIndex index) {
+    Execution execution = new Execution(index, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < roots.length; i++) {
+      Node root = roots[i];
+      if (root == null) {
+        continue;
+      }
+      out.append("filter ").append(i).append(": ").append(filters[i].getShortDesc()).append('\n');
+      int[] candidates = root.candidates(execution);
+      if (candidates != null) {
+        double cost = candidates.length * (root.isExact(execution) ? 0 : root.cost(execution));
+        out.append(String.format(Locale.US, "  LOOKUP %d candidates, cost %.0f%n",
+            candidates.length, cost));
+      } else {
+        out.append(String.format(Locale.US, "  SCAN %d views, cost %.0f%n", index.size(),
+            index.size() * root.cost(execution)));
+      }
+      root.explain(execution, out, "    ");
+    }
+    return out.toString();
+  }
+
+  /** A distinct subexpression of the batch. */
+  private static class Node {
+    final int id;
+    final Filter filter;
+    final Filter.Kind kind;
+    final List<Node> operands;
+    // How many times the batch refers to this subexpression.
+    int uses;
+
+    Node(int id, Filter filter, List<Node> operands) {
+      this.id = id;
+      this.filter = filter;
+      this.kind = filter.getKind();
+      this.operands = operands;
+    }
+
+    /** Returns a superset of the matching views in depth-first order, or null if unknown. */
+    int[] candidates(Execution execution) {
+      if (execution.candidatesKnown[id]) {
+        return execution.candidates[id];
+      }
+      int[] candidates;
+      if (kind == Filter.Kind.AND) {
+        // The intersection of the candidates of indexed operands, smallest first.
+        List<int[]> sets = new ArrayList<>();
+        for (Node operand : operands) {
+          int[] operandCandidates = operand.candidates(execution);
+          if (operandCandidates != null) {
+            sets.add(operandCandidates);
+          }
+        }
+        Collections.sort(sets, new Comparator<int[]>() {
+          @Override
+          public int compare(int[] a, int[] b) {
+            return Integer.compare(a.length, b.length);
+          }
+        });
+        candidates = sets.isEmpty() ? null : sets.get(0);
+        for (int i = 1; i < sets.size(); i++) {
+          candidates = intersect(candidates, sets.get(i));
+        }
+      } else if (kind == Filter.Kind.OR) {
+        candidates = new int[0];
+        for (Node operand : operands) {
+          int[] operandCandidates = operand.candidates(execution);
+          if (operandCandidates == null) {
+            candidates = null;
+            break;
+          }
+          candidates = union(candidates, operandCandidates);
+        }
+      } else {
+        candidates = filter.candidates(execution.index);
+      }
+      execution.candidates[id] = candidates;
+      execution.candidatesKnown[id] = true;
+      return candidates;
+    }
+
+    /** Whether the candidates are exactly the matching views. */
+    boolean isExact(Execution execution) {
+      if (candidates(execution) == null) {
+        return false;
+      }
+      if (kind == Filter.Kind.AND || kind == Filter.Kind.OR) {
+        for (Node operand : operands) {
+          if (!operand.isExact(execution)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    boolean test(Execution execution, int view) {
+      byte[] memo = null;
+      if (uses > 1) {
+        memo = execution.memo[id];
+        if (memo == null) {
+          memo = execution.memo[id] = new byte[execution.index.size()];
+        }
+        if (memo[view] != 0) {
+          return memo[view] == 1;
+        }
+      }
+      boolean result;
+      if (kind == Filter.Kind.AND) {
+        result = true;
+        for (Node operand : execution.ordered(this)) {
+          if (!operand.test(execution, view)) {
+            result = false;
+            break;
+          }
+        }
+      } else if (kind == Filter.Kind.OR) {
+        result = false;
+        for (Node operand : execution.ordered(this)) {
+          if (operand.test(execution, view)) {
+            result = true;
+            break;
+          }
+        }
+      } else if (isExact(execution)) {
+        result = Arrays.binarySearch(candidates(execution), view) >= 0;
+      } else {
+        result = execution.index.matches(filter, view);
+      }
+      if (memo != null) {
+        memo[view] = (byte) (result ? 1 : 2);
+      }
+      return result;
+    }
+
+    /** Returns the estimated share of views that pass the test. */
+    double selectivity(Execution execution) {
+      int size = Math.max(execution.index.size(), 1);
+      if (kind == Filter.Kind.AND) {
+        double selectivity = 1;
+        for (Node operand : operands) {
+          selectivity *= operand.selectivity(execution);
+        }
+        return selectivity;
+      }
+      if (kind == Filter.Kind.OR) {
+        double rejected = 1;
+        for (Node operand : operands) {
+          rejected *= 1 - operand.selectivity(execution);
+        }
+        return 1 - rejected;
+      }
+      int[] candidates = candidates(execution);
+      if (candidates != null) {
+        return (double) candidates.length / size;
+      }
+      switch (kind) {
+        case ANY:
+          return 1;
+        case FOCUSED:
+          return 1.0 / size;
+        case CLICKABLE:
+          return 0.2;
+        default:
+          return 0.5;
+      }
+    }
+
+    /** Returns the estimated cost of testing a view, reading a value costing 1. */
+    double cost(Execution execution) {
+      if (kind == Filter.Kind.AND || kind == Filter.Kind.OR) {
+        // Later operands are only tested when the earlier ones did not decide.
+        double cost = 0;
+        double reached = 1;
+        for (Node operand : execution.ordered(this)) {
+          cost += reached * operand.cost(execution);
+          double selectivity = operand.selectivity(execution);
+          reached *= kind == Filter.Kind.AND ? selectivity : 1 - selectivity;
+        }
+        return cost;
+      }
+      if (isExact(execution)) {
+        return 1;
+      }
+      switch (kind) {
+        case ANY:
+          return 0;
+        case CLICKABLE:
+        case FOCUSED:
+          return 2;
+        default:
+          // Custom filters may need a ViewNode to be created for the view.
+          return 20;
+      }
+    }
+
+    void explain(Execution execution, StringBuilder out, String indent) {
+      String shared = uses > 1 ? ", shared by " + uses + " uses" : "";
+      if (kind == Filter.Kind.AND || kind == Filter.Kind.OR) {
+        out.append(String.format(Locale.US, "%s%s, selectivity %.3f, cost %.1f/view%s%n", indent,
+            kind, selectivity(execution), cost(execution), shared));
+        for (Node operand : execution.ordered(this)) {
+          operand.explain(execution, out, indent + "  ");
+        }
+        return;
+      }
+      int[] candidates = candidates(execution);
+      String how = candidates != null ? "INDEX " + candidates.length + " views" : "TEST";
+      out.append(String.format(Locale.US, "%s%s %s, selectivity %.3f, cost %.1f/view%s%n",
+          indent, how, filter.getShortDesc(), selectivity(execution), cost(execution), shared));
+    }
+  }
+
+  /** The state of evaluating the plan against one snapshot. */
+  private class Execution {
+    final SnapshotIndex index;
+    final int displayWidth;
+    final int displayHeight;
+    final int[][] candidates = new int[nodes.size()][];
+    final boolean[] candidatesKnown = new boolean[nodes.size()];
+    final byte[][] memo = new byte[nodes.size()][];
+    final Node[][] orderedOperands = new Node[nodes.size()][];
+    private byte[] shown;
+
+    Execution(SnapshotIndex index, int displayWidth, int displayHeight) {
+      this.index = index;
+      this.displayWidth = displayWidth;
+      this.displayHeight = displayHeight;
+    }
+
+    /**
+     * Returns the operands in the order they are best tested in: by cost per rejected view for
+     * {@code and}, by cost per accepted view for {@code or}.
+     */
+    Node[] ordered(final Node node) {
+      Node[] ordered = orderedOperands[node.id];
+      if (ordered != null) {
+        return ordered;
+      }
+      ordered = node.operands.toArray(new Node[node.operands.size()]);
+      final double[] rank = new double[nodes.size()];
+      for (Node operand : ordered) {
+        double decided = node.kind == Filter.Kind.AND ? 1 - operand.selectivity(this)
+            : operand.selectivity(this);
+        rank[operand.id] = operand.cost(this) / Math.max(decided, 1e-9);
+      }
+      Arrays.sort(ordered, new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+          return Double.compare(rank[a.id], rank[b.id]);
+        }
+      });
+      orderedOperands[node.id] = ordered;
+      return ordered;
+    }
+
+    /** Whether the traversal would reach the view: it and its ancestors must be visible. */
+    boolean isShown(int view) {
+      if (shown == null) {
+        shown = new byte[index.size()];
+      }
+      if (shown[view] == 0) {
+        int parent = index.getParent(view);
+        boolean visible = index.isVisible(view, displayWidth, displayHeight) &&
+            (parent == CompactSnapshot.NO_VIEW || isShown(parent));
+        shown[view] = (byte) (visible ? 1 : 2);
+      }
+      return shown[view] == 1;
+    }
+  }
+
+  private static int[] intersect(int[] a, int[] b) {
+    int[] result = new int[Math.min(a.length, b.length)];
+    int count = 0;
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[count++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  private static int[] union(int[] a, int[] b) {
+    int[] result = new int[a.length + b.length];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        result[count++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        result[count++] = b[j++];
+      } else {
+        result[count++] = a[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+}
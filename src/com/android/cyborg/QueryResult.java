@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches for a batch of filters, all evaluated against the same capture of the screen.
+ */
+public class QueryResult {
+  private final Filter[] filters;
+  private final List<List<ViewNode>> matches;
+
+  QueryResult(Filter[] filters, List<List<ViewNode>> matches) {
+    this.filters = filters;
+    this.matches = matches;
+  }
+
+  public int size() {
+    return filters.length;
+  }
+
+  public Filter getFilter(int index) {
+    return filters[index];
+  }
+
+  /** Returns the nodes matching the filter at the given position of the query. */
+  public List<ViewNode> getNodes(int index) {
+    return Collections.unmodifiableList(matches.get(index));
+  }
+
+  /** Returns the nodes matching the given filter, which must be part of the query. */
+  public List<ViewNode> getNodes(Filter filter) {
+    return getNodes(indexOf(filter));
+  }
+
+  public boolean isVisible(Filter filter) {
+    return !getNodes(filter).isEmpty();
+  }
+
+  public List<Rect> getRects(Filter filter) {
+    List<Rect> rects = new ArrayList<>();
+    for (ViewNode node : getNodes(filter)) {
+      rects.add(ViewHierarchySnapshotter.findVisibleRect(node));
+    }
+    return rects;
+  }
+
+  /**
+   * Returns the text of the only node matching the given filter, or null if there is no such
+   * text or the filter does not match exactly one node.
+   */
+  public String getText(Filter filter) {
+    return getSinglePropertyValue(filter, PropertySymbols.TEXT);
+  }
+
+  /**
+   * Returns the content description of the only node matching the given filter, or null if there
+   * is no such description or the filter does not match exactly one node.
+   */
+  public String getContentDescription(Filter filter) {
+    return getSinglePropertyValue(filter, PropertySymbols.CONTENT_DESCRIPTION);
+  }
+
+  private String getSinglePropertyValue(Filter filter, int propertySymbol) {
+    List<ViewNode> nodes = getNodes(filter);
+    if (nodes.size() != 1) {
+      return null;
+    }
+    return nodes.get(0).getString(propertySymbol);
+  }
+
+  private int indexOf(Filter filter) {
+    for (int i = 0; i < filters.length; i++) {
+      if (filters[i] == filter) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(filter + " is not part of this query");
+  }
+}
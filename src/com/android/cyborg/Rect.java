@@ -32,6 +32,22 @@ public class Rect {
     return new Point(x + (w / 2), y + (h / 2));
   }
 
+  public boolean contains(int px, int py) {
+    return px >= x && py >= y && px < (long) x + w && py < (long) y + h;
+  }
+
+  public boolean intersects(Rect other) {
+    return x < (long) other.x + other.w && other.x < (long) x + w &&
+        y < (long) other.y + other.h && other.y < (long) y + h;
+  }
+
+  /** Returns the squared distance from the point to the nearest pixel of this rect. */
+  public long distanceSquaredTo(int px, int py) {
+    long dx = Math.max(Math.max((long) x - px, (long) px - ((long) x + w - 1)), 0);
+    long dy = Math.max(Math.max((long) y - py, (long) py - ((long) y + h - 1)), 0);
+    return dx * dx + dy * dy;
+  }
+
 
   public void grow(int units) {
     x -= units;
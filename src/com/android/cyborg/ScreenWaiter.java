@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a condition on the screen of a device, checking it with a full capture only when a
+ * cheap probe of the screen shows a change.
+ *
+ * <p>Probes start close together and back off while the screen stays the same, and come close
+ * together again as soon as it changes. A probe only sees the windows and their root views, so
+ * the condition is also checked at least every {@link #MAX_CAPTURE_INTERVAL_MILLIS}, which
+ * catches changes deeper in a hierarchy.
+ */
+class ScreenWaiter {
+
+  /** Something to wait for, typically a query against fresh captures. */
+  interface Condition {
+    boolean isMet();
+  }
+
+  static final long MIN_PROBE_INTERVAL_MILLIS = 20;
+  static final long MAX_PROBE_INTERVAL_MILLIS = 320;
+  static final long MAX_CAPTURE_INTERVAL_MILLIS = 500;
+
+  private final CyborgDevice device;
+
+  ScreenWaiter(CyborgDevice device) {
+    this.device = device;
+  }
+
+  /**
+   * Returns whether the condition was met before the timeout expired. The condition is checked
+   * right away, and one last time once the timeout expires unless it was checked just before.
+   */
+  boolean waitUntil(Condition condition, long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    if (condition.isMet()) {
+      return true;
+    }
+    long lastCheckedMillis = System.currentTimeMillis();
+    long fingerprint = ViewHierarchySnapshotter.probe(device);
+    long lastCaptureMillis = System.currentTimeMillis();
+    long probeInterval = MIN_PROBE_INTERVAL_MILLIS;
+    while (true) {
+      long now = System.currentTimeMillis();
+      if (now >= deadline) {
+        break;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(Math.min(probeInterval, deadline - now));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      long probed = ViewHierarchySnapshotter.probe(device);
+      now = System.currentTimeMillis();
+      boolean changed = probed != fingerprint;
+      fingerprint = probed;
+      // Screens change in bursts: right after a change, look again soon.
+      probeInterval = changed ? MIN_PROBE_INTERVAL_MILLIS
+          : Math.min(probeInterval * 2, MAX_PROBE_INTERVAL_MILLIS);
+      if (changed || now - lastCaptureMillis >= MAX_CAPTURE_INTERVAL_MILLIS) {
+        if (check(condition)) {
+          return true;
+        }
+        lastCaptureMillis = now;
+        lastCheckedMillis = System.currentTimeMillis();
+        if (now >= deadline) {
+          return false;
+        }
+      }
+    }
+    // A check that completed within a probe interval of the deadline saw the final screen.
+    if (deadline - lastCheckedMillis <= MIN_PROBE_INTERVAL_MILLIS) {
+      return false;
+    }
+    return check(condition);
+  }
+
+  private boolean check(Condition condition) {
+    // The window lists were just refreshed by the probe, only the snapshots are stale.
+    device.getSnapshotCache().invalidate();
+    return condition.isMet();
+  }
+}
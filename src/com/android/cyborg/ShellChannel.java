@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A shell session on a device that stays open, so that commands such as input events do not each
+ * pay for a new ADB connection and shell.
+ *
+ * <p>Commands are written to the shell in the order they are submitted, and run one after the
+ * other. Each one is followed by an echo of a marker holding its sequence number and exit status,
+ * which tells the reader thread that the command completed and which output was its own.
+ */
+public class ShellChannel implements Closeable {
+
+  public static final int DEFAULT_ADB_PORT = 5037;
+
+  // Split in the command that prints it, so that a terminal echoing the command does not print
+  // the marker itself.
+  private static final String MARKER = "__CYBORG_DONE";
+  private static final String MARKER_COMMAND = "echo \"__CYBORG\"\"_DONE\" ";
+
+  private final Socket socket;
+  private final OutputStream out;
+  // Held while writing, which may block until the device reads. Never held with the lock of this
+  // object, which the reader thread needs to complete commands as it drains their output.
+  private final Object writeLock = new Object();
+  private final Deque<Pending> pending = new ArrayDeque<>();
+  private long nextId;
+  private IOException failure;
+
+  private ShellChannel(Socket socket) throws IOException {
+    this.socket = socket;
+    this.out = socket.getOutputStream();
+  }
+
+  /** Opens a shell on the device with the given serial number through the local ADB server. */
+  public static ShellChannel open(String serialNumber) throws IOException {
+    String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+    return open(new InetSocketAddress("127.0.0.1",
+        port != null ? Integer.parseInt(port) : DEFAULT_ADB_PORT), serialNumber);
+  }
+
+  public static ShellChannel open(InetSocketAddress adbServer, String serialNumber)
+      throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(adbServer, 5000);
+      socket.setTcpNoDelay(true);
+      sendRequest(socket, "host:transport:" + serialNumber);
+      sendRequest(socket, "shell:");
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    ShellChannel channel = new ShellChannel(socket);
+    Thread reader = new Thread(channel.new Reader(), "cyborg-shell-" + serialNumber);
+    reader.setDaemon(true);
+    reader.start();
+    return channel;
+  }
+
+  /** Sends a request of the ADB host protocol and checks that the server accepted it. */
+  private static void sendRequest(Socket socket, String request) throws IOException {
+    byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+    OutputStream out = socket.getOutputStream();
+    out.write(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+    out.write(payload);
+    out.flush();
+    InputStream in = socket.getInputStream();
+    String status = new String(readFully(in, 4), StandardCharsets.US_ASCII);
+    if (!"OKAY".equals(status)) {
+      String message = "";
+      if ("FAIL".equals(status)) {
+        int length = Integer.parseInt(new String(readFully(in, 4), StandardCharsets.US_ASCII), 16);
+        message = new String(readFully(in, length), StandardCharsets.UTF_8);
+      }
+      throw new IOException("ADB rejected " + request + ": " + status + " " + message);
+    }
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    for (int read = 0; read < length; ) {
+      int count = in.read(bytes, read, length - read);
+      if (count < 0) {
+        throw new IOException("Connection to ADB closed");
+      }
+      read += count;
+    }
+    return bytes;
+  }
+
+  /**
+   * Runs a single line command after those submitted before it. The future completes with the
+   * output of the command, or fails if it exits with a non-zero status or the session ends.
+   */
+  public CompletableFuture<String> submit(String command) {
+    if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) {
+      throw new IllegalArgumentException("Commands must fit on a line: " + command);
+    }
+    CompletableFuture<String> result = new CompletableFuture<>();
+    // Taken first so that commands are written in the order they were queued.
+    synchronized (writeLock) {
+      long id;
+      synchronized (this) {
+        if (failure != null) {
+          result.completeExceptionally(failure);
+          return result;
+        }
+        id = nextId++;
+        pending.addLast(new Pending(id, command, result));
+      }
+      try {
+        out.write((command + "\n" + MARKER_COMMAND + id + " $?\n")
+            .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return result;
+  }
+
+  /** Whether the session ended, after which every command fails. */
+  public synchronized boolean isClosed() {
+    return failure != null;
+  }
+
+  @Override
+  public void close() {
+    fail(new IOException("Shell channel closed"));
+  }
+
+  private synchronized void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+    }
+    for (Pending command : pending) {
+      command.result.completeExceptionally(failure);
+    }
+    pending.clear();
+    try {
+      socket.close();
+    } catch (IOException ignored) { }
+  }
+
+  private synchronized void complete(long id, int status, String output) {
+    Pending command = pending.peekFirst();
+    if (command == null || command.id != id) {
+      // Only a marker echoed by the terminal could get here, which has no status.
+      return;
+    }
+    pending.removeFirst();
+    if (status == 0) {
+      command.result.complete(output);
+    } else {
+      command.result.completeExceptionally(new IOException(
+          "'" + command.command + "' exited with status " + status + ": " + output));
+    }
+  }
+
+  private class Reader implements Runnable {
+    @Override
+    public void run() {
+      StringBuilder output = new StringBuilder();
+      try (BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          // A terminal may prefix the marker with its prompt.
+          int marker = line.indexOf(MARKER);
+          if (marker < 0) {
+            output.append(line).append('\n');
+            continue;
+          }
+          String[] fields = line.substring(marker + MARKER.length()).trim().split(" ");
+          if (fields.length == 2) {
+            try {
+              complete(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                  output.toString());
+              output.setLength(0);
+            } catch (NumberFormatException ignored) { }
+          }
+        }
+        fail(new IOException("Shell session ended"));
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  private static class Pending {
+    final long id;
+    final String command;
+    final CompletableFuture<String> result;
+
+    Pending(long id, String command, CompletableFuture<String> result) {
+      this.id = id;
+      this.command = command;
+      this.result = result;
+    }
+  }
+}
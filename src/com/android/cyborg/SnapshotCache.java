@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import com.android.ddmlib.Client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Window snapshots of one device, keyed by client and window title, so that lookups issued back
+ * to back without any input in between share a single hierarchy dump.
+ *
+ * <p>Entries expire after a time to live, and the whole cache is dropped whenever something may
+ * have changed the screen. Every invalidation bumps a generation counter: a capture that was
+ * started before an invalidation is not stored when it completes.
+ */
+class SnapshotCache {
+
+  /** Snapshots older than this are captured again. */
+  static final long DEFAULT_TTL_MILLIS = 1000;
+
+  private final Map<Client, Map<String, WindowSnapshot>> snapshots = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+  /** Returns a fresh snapshot of the given window, or null if it needs to be captured. */
+  WindowSnapshot get(Window window) {
+    Map<String, WindowSnapshot> windows = snapshots.get(window.getClient());
+    if (windows == null) {
+      return null;
+    }
+    WindowSnapshot snapshot = windows.get(window.getTitle());
+    if (snapshot == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - snapshot.getCaptureTimeMillis() >= ttlMillis) {
+      windows.remove(window.getTitle(), snapshot);
+      return null;
+    }
+    return snapshot;
+  }
+
+  /** Returns the fresh snapshots of every window, without capturing any. */
+  List<WindowSnapshot> getAll() {
+    List<WindowSnapshot> fresh = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (Map<String, WindowSnapshot> windows : snapshots.values()) {
+      for (WindowSnapshot snapshot : windows.values()) {
+        if (now - snapshot.getCaptureTimeMillis() < ttlMillis) {
+          fresh.add(snapshot);
+        }
+      }
+    }
+    return fresh;
+  }
+
+  /**
+   * Stores a snapshot captured while the cache was at {@code captureGeneration}, unless the cache
+   * has been invalidated since.
+   */
+  void put(WindowSnapshot snapshot, long captureGeneration) {
+    if (ttlMillis <= 0 || generation.get() != captureGeneration) {
+      return;
+    }
+    Window window = snapshot.getWindow();
+    Map<String, WindowSnapshot> windows = snapshots.get(window.getClient());
+    if (windows == null) {
+      windows = new ConcurrentHashMap<>();
+      Map<String, WindowSnapshot> existing = snapshots.putIfAbsent(window.getClient(), windows);
+      if (existing != null) {
+        windows = existing;
+      }
+    }
+    windows.put(window.getTitle(), snapshot);
+  }
+
+  /** Current generation, to be passed back to {@link #put} once a capture completes. */
+  long generation() {
+    return generation.get();
+  }
+
+  void invalidate() {
+    generation.incrementAndGet();
+    snapshots.clear();
+  }
+
+  void setTtlMillis(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    if (ttlMillis <= 0) {
+      invalidate();
+    }
+  }
+
+  long getTtlMillis() {
+    return ttlMillis;
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookups of the views of a snapshot by id, text, class name and content description, so that
+ * filters on them do not have to visit every view. Views are numbered in depth-first order, and
+ * every lookup returns their numbers in that order.
+ */
+public class SnapshotIndex {
+  private static final int[] NONE = new int[0];
+
+  private final ViewNode[] nodes;
+  private final CompactSnapshot compact;
+  private final int size;
+  private final int[] parent;
+  private final int[] subtreeSize;
+
+  private Map<String, int[]> byId;
+  private Map<String, int[]> byText;
+  private Map<String, int[]> byClassName;
+  private SortedValues descriptionStarts;
+  private SortedValues descriptionEnds;
+
+  private SnapshotIndex(ViewNode[] nodes, CompactSnapshot compact, int[] parent) {
+    this.nodes = nodes;
+    this.compact = compact;
+    this.size = parent.length;
+    this.parent = parent;
+    subtreeSize = new int[size];
+    for (int view = size - 1; view >= 0; view--) {
+      subtreeSize[view]++;
+      if (parent[view] != CompactSnapshot.NO_VIEW) {
+        subtreeSize[parent[view]] += subtreeSize[view];
+      }
+    }
+  }
+
+  /** Indexes the views under the given root. */
+  public static SnapshotIndex of(ViewNode root) {
+    List<ViewNode> nodes = new ArrayList<>();
+    List<Integer> parents = new ArrayList<>();
+    collect(root, CompactSnapshot.NO_VIEW, nodes, parents);
+    int[] parent = new int[nodes.size()];
+    for (int view = 0; view < parent.length; view++) {
+      parent[view] = parents.get(view);
+    }
+    return new SnapshotIndex(nodes.toArray(new ViewNode[parent.length]), null, parent);
+  }
+
+  private static void collect(ViewNode node, int parent, List<ViewNode> nodes,
+      List<Integer> parents) {
+    int view = nodes.size();
+    nodes.add(node);
+    parents.add(parent);
+    for (int i = 0; i < node.children.size(); i++) {
+      collect(node.children.get(i), view, nodes, parents);
+    }
+  }
+
+  /** Indexes the views of the given compact snapshot, numbered as they are there. */
+  public static SnapshotIndex of(CompactSnapshot snapshot) {
+    int[] parent = new int[snapshot.size()];
+    for (int view = 0; view < parent.length; view++) {
+      parent[view] = snapshot.getParent(view);
+    }
+    return new SnapshotIndex(null, snapshot, parent);
+  }
+
+  private String[] getIds() {
+    String[] ids = new String[size];
+    for (int view = 0; view < size; view++) {
+      ids[view] = compact != null ? compact.getId(view) : nodes[view].id;
+    }
+    return ids;
+  }
+
+  private String[] getClassNames() {
+    String[] names = new String[size];
+    for (int view = 0; view < size; view++) {
+      names[view] = compact != null ? compact.getName(view) : nodes[view].name;
+    }
+    return names;
+  }
+
+  private String[] getStrings(int symbol) {
+    String[] values = new String[size];
+    for (int view = 0; view < size; view++) {
+      values[view] = compact != null ? compact.getString(view, symbol)
+          : nodes[view].getString(symbol);
+    }
+    return values;
+  }
+
+  private static Map<String, int[]> group(String[]... keysByView) {
+    // Counted first, so that each group is allocated once at its size.
+    Map<String, int[]> counts = new HashMap<>();
+    for (String[] keys : keysByView) {
+      for (String key : keys) {
+        if (key != null) {
+          int[] count = counts.get(key);
+          if (count == null) {
+            counts.put(key, new int[] {1});
+          } else {
+            count[0]++;
+          }
+        }
+      }
+    }
+    Map<String, int[]> groups = new HashMap<>();
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      groups.put(entry.getKey(), new int[entry.getValue()[0]]);
+      entry.getValue()[0] = 0;
+    }
+    int size = keysByView[0].length;
+    for (int view = 0; view < size; view++) {
+      for (String[] keys : keysByView) {
+        String key = keys[view];
+        if (key != null) {
+          groups.get(key)[counts.get(key)[0]++] = view;
+        }
+      }
+    }
+    return groups;
+  }
+
+  /** Returns the number of views. */
+  public int size() {
+    return size;
+  }
+
+  public ViewNode getNode(int view) {
+    return compact != null ? compact.getNode(view) : nodes[view];
+  }
+
+  public int getParent(int view) {
+    return parent[view];
+  }
+
+  /** Returns the number of views in the subtree of the view, which follow it in numbering. */
+  public int getSubtreeSize(int view) {
+    return subtreeSize[view];
+  }
+
+  /**
+   * Whether the view itself is visible and within the display, regardless of its ancestors. See
+   * {@link ViewHierarchySnapshotter#findVisibleRect(ViewNode)}.
+   */
+  boolean isVisible(int view, int displayWidth, int displayHeight) {
+    if (compact != null) {
+      return compact.getVisibility(view) == ViewNode.VISIBLE &&
+          ViewHierarchySnapshotter.isOnDisplay(compact.findVisibleRect(view), displayWidth,
+              displayHeight);
+    }
+    return nodes[view].visibility == ViewNode.VISIBLE &&
+        ViewHierarchySnapshotter.isOnDisplay(ViewHierarchySnapshotter.findVisibleRect(nodes[view]),
+            displayWidth, displayHeight);
+  }
+
+  /** Returns the children of the view. */
+  public int[] getChildren(int view) {
+    int count = 0;
+    for (int child = view + 1; child < view + subtreeSize[view]; child += subtreeSize[child]) {
+      count++;
+    }
+    int[] children = new int[count];
+    for (int child = view + 1, i = 0; i < count; child += subtreeSize[child], i++) {
+      children[i] = child;
+    }
+    return children;
+  }
+
+  /** Whether the view matches the filter, looking at the compact form when there is one. */
+  boolean matches(Filter filter, int view) {
+    return compact != null ? filter.apply(compact, view) : filter.apply(nodes[view]);
+  }
+
+  /** Returns the views with the given id, as shown in {@link ViewNode#id}. */
+  public synchronized int[] findById(String id) {
+    if (byId == null) {
+      byId = group(getIds());
+    }
+    return lookup(byId, id);
+  }
+
+  /** Returns the views whose text, with surrounding spaces removed, is the given one. */
+  public synchronized int[] findByText(String trimmedText) {
+    if (byText == null) {
+      String[] trimmed = getStrings(PropertySymbols.TEXT);
+      for (int view = 0; view < size; view++) {
+        trimmed[view] = trimmed[view] == null ? null : trimmed[view].trim();
+      }
+      byText = group(trimmed);
+    }
+    return lookup(byText, trimmedText);
+  }
+
+  /** Returns the views of the given class, named in full or by its simple name. */
+  public synchronized int[] findByClassName(String className) {
+    if (byClassName == null) {
+      String[] names = getClassNames();
+      String[] simpleNames = new String[size];
+      for (int view = 0; view < size; view++) {
+        String name = names[view];
+        int dot = name == null ? -1 : name.lastIndexOf('.');
+        simpleNames[view] = dot == -1 ? null : name.substring(dot + 1);
+      }
+      byClassName = group(names, simpleNames);
+    }
+    return lookup(byClassName, className);
+  }
+
+  public synchronized int[] findByContentDescriptionStart(String prefix) {
+    if (descriptionStarts == null) {
+      descriptionStarts = new SortedValues(getStrings(PropertySymbols.CONTENT_DESCRIPTION));
+    }
+    return descriptionStarts.findByPrefix(prefix);
+  }
+
+  public synchronized int[] findByContentDescriptionEnd(String suffix) {
+    if (descriptionEnds == null) {
+      String[] reversed = getStrings(PropertySymbols.CONTENT_DESCRIPTION);
+      for (int view = 0; view < size; view++) {
+        reversed[view] = reversed[view] == null ? null : reverse(reversed[view]);
+      }
+      descriptionEnds = new SortedValues(reversed);
+    }
+    return descriptionEnds.findByPrefix(reverse(suffix));
+  }
+
+  private static String reverse(String value) {
+    return new StringBuilder(value).reverse().toString();
+  }
+
+  private static int[] lookup(Map<String, int[]> index, String key) {
+    int[] views = index.get(key);
+    return views == null ? NONE : views;
+  }
+
+  /** Views that have a value, sorted by it, for prefix lookups. */
+  private static class SortedValues {
+    private final String[] values;
+    private final int[] views;
+
+    SortedValues(final String[] valuesByView) {
+      List<Integer> order = new ArrayList<>();
+      for (int view = 0; view < valuesByView.length; view++) {
+        if (valuesByView[view] != null) {
+          order.add(view);
+        }
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int byValue = valuesByView[a].compareTo(valuesByView[b]);
+          return byValue != 0 ? byValue : Integer.compare(a, b);
+        }
+      });
+      values = new String[order.size()];
+      views = new int[order.size()];
+      for (int i = 0; i < views.length; i++) {
+        views[i] = order.get(i);
+        values[i] = valuesByView[views[i]];
+      }
+    }
+
+    int[] findByPrefix(String prefix) {
+      int from = Arrays.binarySearch(values, prefix);
+      if (from < 0) {
+        from = -from - 1;
+      } else {
+        // Equal values may precede the one found.
+        while (from > 0 && values[from - 1].equals(prefix)) {
+          from--;
+        }
+      }
+      int to = from;
+      while (to < values.length && values[to].startsWith(prefix)) {
+        to++;
+      }
+      int[] found = Arrays.copyOfRange(views, from, to);
+      Arrays.sort(found);
+      return found;
+    }
+  }
+}
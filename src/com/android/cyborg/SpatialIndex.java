@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A uniform grid over the display bounds of the shown views of a snapshot, for finding views by
+ * position without visiting the whole hierarchy. A view is shown when it and all its ancestors
+ * are {@link ViewNode#VISIBLE}.
+ *
+ * <p>Each view is listed in every cell its bounds overlap, in depth-first order, so that views
+ * drawn on top of others come later in the results.
+ */
+public class SpatialIndex {
+  private final ViewNode[] nodes;
+  private final CompactSnapshot compact;
+  // Views of the compact snapshot, when there is one.
+  private final int[] views;
+
+  private final int count;
+  private final int[] x;
+  private final int[] y;
+  private final int[] w;
+  private final int[] h;
+
+  private final int originX;
+  private final int originY;
+  private final int cellSize;
+  private final int columns;
+  private final int rows;
+  // The entries of cell c are cellEntries[cellStart[c]] to cellEntries[cellStart[c + 1] - 1].
+  private final int[] cellStart;
+  private final int[] cellEntries;
+
+  private SpatialIndex(ViewNode[] nodes, CompactSnapshot compact, int[] views, List<Rect> rects) {
+    this.nodes = nodes;
+    this.compact = compact;
+    this.views = views;
+    count = rects.size();
+    x = new int[count];
+    y = new int[count];
+    w = new int[count];
+    h = new int[count];
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    long maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    for (int i = 0; i < count; i++) {
+      Rect rect = rects.get(i);
+      x[i] = rect.x;
+      y[i] = rect.y;
+      w[i] = Math.max(rect.w, 0);
+      h[i] = Math.max(rect.h, 0);
+      minX = Math.min(minX, x[i]);
+      minY = Math.min(minY, y[i]);
+      maxX = Math.max(maxX, (long) x[i] + w[i]);
+      maxY = Math.max(maxY, (long) y[i] + h[i]);
+    }
+    if (count == 0) {
+      minX = minY = 0;
+      maxX = maxY = 1;
+    }
+    // About as many square cells as views. Square cells keep nearest view searches, which
+    // widen one ring of cells at a time, from crawling along the shorter side.
+    long spanX = Math.max(maxX - minX, 1);
+    long spanY = Math.max(maxY - minY, 1);
+    double cellArea = (double) spanX * spanY / Math.max(count, 1);
+    originX = minX;
+    originY = minY;
+    cellSize = (int) Math.max(Math.ceil(Math.sqrt(cellArea)), 1);
+    columns = (int) ((spanX + cellSize - 1) / cellSize) + 1;
+    rows = (int) ((spanY + cellSize - 1) / cellSize) + 1;
+
+    cellStart = new int[columns * rows + 1];
+    for (int i = 0; i < count; i++) {
+      for (int row = rowOf(y[i]); row <= rowOf((long) y[i] + h[i]); row++) {
+        for (int column = columnOf(x[i]); column <= columnOf((long) x[i] + w[i]); column++) {
+          cellStart[row * columns + column + 1]++;
+        }
+      }
+    }
+    for (int c = 0; c < columns * rows; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+    cellEntries = new int[cellStart[columns * rows]];
+    int[] next = Arrays.copyOf(cellStart, columns * rows);
+    for (int i = 0; i < count; i++) {
+      for (int row = rowOf(y[i]); row <= rowOf((long) y[i] + h[i]); row++) {
+        for (int column = columnOf(x[i]); column <= columnOf((long) x[i] + w[i]); column++) {
+          cellEntries[next[row * columns + column]++] = i;
+        }
+      }
+    }
+  }
+
+  /** Indexes the shown views under the given root. */
+  public static SpatialIndex of(ViewNode root) {
+    List<ViewNode> nodes = new ArrayList<>();
+    List<Rect> rects = new ArrayList<>();
+    collect(root, nodes, rects);
+    return new SpatialIndex(nodes.toArray(new ViewNode[nodes.size()]), null, null, rects);
+  }
+
+  private static void collect(ViewNode node, List<ViewNode> nodes, List<Rect> rects) {
+    if (node.visibility != ViewNode.VISIBLE) {
+      return;
+    }
+    nodes.add(node);
+    rects.add(ViewHierarchySnapshotter.findVisibleRect(node));
+    for (int i = 0; i < node.children.size(); i++) {
+      collect(node.children.get(i), nodes, rects);
+    }
+  }
+
+  /** Indexes the shown views of the given compact snapshot. */
+  public static SpatialIndex of(CompactSnapshot snapshot) {
+    int[] views = new int[snapshot.size()];
+    int count = 0;
+    List<Rect> rects = new ArrayList<>();
+    // Parents come before their children, so a view is hidden when its parent is.
+    boolean[] hidden = new boolean[snapshot.size()];
+    for (int view = 0; view < snapshot.size(); view++) {
+      int parent = snapshot.getParent(view);
+      hidden[view] = snapshot.getVisibility(view) != ViewNode.VISIBLE ||
+          (parent != CompactSnapshot.NO_VIEW && hidden[parent]);
+      if (!hidden[view]) {
+        views[count++] = view;
+        rects.add(snapshot.findVisibleRect(view));
+      }
+    }
+    return new SpatialIndex(null, snapshot, Arrays.copyOf(views, count), rects);
+  }
+
+  /** Returns the number of views indexed. */
+  public int size() {
+    return count;
+  }
+
+  /** Returns the views whose bounds contain the given point, topmost last. */
+  public List<ViewNode> findViewsAt(int px, int py) {
+    List<ViewNode> found = new ArrayList<>();
+    int column = columnOf(px);
+    int row = rowOf(py);
+    if (column != clampColumn(column) || row != clampRow(row)) {
+      return found;
+    }
+    int cell = row * columns + column;
+    for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+      int i = cellEntries[e];
+      if (contains(i, px, py)) {
+        found.add(nodeAt(i));
+      }
+    }
+    return found;
+  }
+
+  /** Returns the views whose bounds intersect the given rect, in depth-first order. */
+  public List<ViewNode> findViewsIntersecting(Rect rect) {
+    int firstColumn = clampColumn(columnOf(rect.x));
+    int lastColumn = clampColumn(columnOf((long) rect.x + rect.w));
+    int firstRow = clampRow(rowOf(rect.y));
+    int lastRow = clampRow(rowOf((long) rect.y + rect.h));
+    int[] matches = new int[16];
+    int found = 0;
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        int cell = row * columns + column;
+        for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+          int i = cellEntries[e];
+          if (!intersects(i, rect)) {
+            continue;
+          }
+          // A view spanning several cells is only reported from the cell holding the top left
+          // corner of its intersection with the rect.
+          int cornerColumn = clampColumn(columnOf(Math.max(x[i], rect.x)));
+          int cornerRow = clampRow(rowOf(Math.max(y[i], rect.y)));
+          if (cornerColumn == column && cornerRow == row) {
+            if (found == matches.length) {
+              matches = Arrays.copyOf(matches, found * 2);
+            }
+            matches[found++] = i;
+          }
+        }
+      }
+    }
+    Arrays.sort(matches, 0, found);
+    List<ViewNode> nodes = new ArrayList<>(found);
+    for (int m = 0; m < found; m++) {
+      nodes.add(nodeAt(matches[m]));
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the view matching the filter whose bounds are closest to the given point, preferring
+   * the topmost one among views at the same distance, or null if no view matches.
+   */
+  public ViewNode findNearest(int px, int py, Filter filter) {
+    // Cells are visited in rings around the one nearest to the point. Views not met yet lie in
+    // cells of the next rings, which are at least that many cells further away horizontally or
+    // vertically, on top of the distance from the point to the grid.
+    int column = clampColumn(columnOf(px));
+    int row = clampRow(rowOf(py));
+    long outsideX = Math.max(Math.max((long) originX - px,
+        (long) px - ((long) originX + (long) columns * cellSize - 1)), 0);
+    long outsideY = Math.max(Math.max((long) originY - py,
+        (long) py - ((long) originY + (long) rows * cellSize - 1)), 0);
+    int maxRing = Math.max(columns, rows);
+    int best = -1;
+    long bestDistance = Long.MAX_VALUE;
+    for (int ring = 0; ring <= maxRing; ring++) {
+      long reach = (long) Math.max(ring - 1, 0) * cellSize;
+      long reachX = outsideX + reach;
+      long reachY = outsideY + reach;
+      long minDistance = Math.min(reachX * reachX + outsideY * outsideY,
+          outsideX * outsideX + reachY * reachY);
+      if (best != -1 && bestDistance < minDistance) {
+        break;
+      }
+      for (int r = row - ring; r <= row + ring; r++) {
+        if (r < 0 || r >= rows) {
+          continue;
+        }
+        boolean edgeRow = r == row - ring || r == row + ring;
+        int step = edgeRow ? 1 : Math.max(2 * ring, 1);
+        for (int c = column - ring; c <= column + ring; c += step) {
+          if (c < 0 || c >= columns) {
+            continue;
+          }
+          int cell = r * columns + c;
+          for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+            int i = cellEntries[e];
+            long distance = distanceSquared(i, px, py);
+            if (distance < bestDistance || (distance == bestDistance && i > best)) {
+              if (matches(i, filter)) {
+                best = i;
+                bestDistance = distance;
+              }
+            }
+          }
+        }
+      }
+    }
+    return best == -1 ? null : nodeAt(best);
+  }
+
+  private boolean matches(int i, Filter filter) {
+    return compact != null ? filter.apply(compact, views[i]) : filter.apply(nodes[i]);
+  }
+
+  private ViewNode nodeAt(int i) {
+    return compact != null ? compact.getNode(views[i]) : nodes[i];
+  }
+
+  private boolean contains(int i, int px, int py) {
+    return px >= x[i] && py >= y[i] && px < (long) x[i] + w[i] && py < (long) y[i] + h[i];
+  }
+
+  private boolean intersects(int i, Rect rect) {
+    return x[i] < (long) rect.x + rect.w && rect.x < (long) x[i] + w[i] &&
+        y[i] < (long) rect.y + rect.h && rect.y < (long) y[i] + h[i];
+  }
+
+  private long distanceSquared(int i, int px, int py) {
+    long dx = Math.max(Math.max((long) x[i] - px, (long) px - ((long) x[i] + w[i] - 1)), 0);
+    long dy = Math.max(Math.max((long) y[i] - py, (long) py - ((long) y[i] + h[i] - 1)), 0);
+    return dx * dx + dy * dy;
+  }
+
+  private int columnOf(long px) {
+    return (int) Math.max(Math.min(Math.floorDiv(px - originX, cellSize), columns), -1);
+  }
+
+  private int rowOf(long py) {
+    return (int) Math.max(Math.min(Math.floorDiv(py - originY, cellSize), rows), -1);
+  }
+
+  private int clampColumn(int column) {
+    return Math.min(Math.max(column, 0), columns - 1);
+  }
+
+  private int clampRow(int row) {
+    return Math.min(Math.max(row, 0), rows - 1);
+  }
+}
@@ -21,13 +21,12 @@ import com.google.common.collect.Lists;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
 public class ViewDumpParser {
     private Map<String, Short> mIds;
-    private Map<Short, Object> mStringTable;
-    private List<Map<Short,Object>> mViews;
+    private PropertyMap mStringTable;
+    private List<PropertyMap> mViews;
 
     public void parse(byte[] data) {
         Decoder d = new Decoder(ByteBuffer.wrap(data));
@@ -35,20 +34,16 @@ public class ViewDumpParser {
         mViews = Lists.newArrayListWithExpectedSize(100);
 
         boolean dataIncludesWindowPosition = (data[0] == 'S');
-        Short windowLeftKey = null, windowTopKey = null;
-        Integer windowLeftValue = null, windowTopValue = null;
+        PropertyMap windowPosition = new PropertyMap();
         if (dataIncludesWindowPosition) {
-            windowLeftKey = (Short) d.readObject();
-            windowLeftValue = (Integer) d.readObject();
-            windowTopKey = (Short) d.readObject();
-            windowTopValue = (Integer) d.readObject();
+            d.readValue(windowPosition, d.readMapKey());
+            d.readValue(windowPosition, d.readMapKey());
         }
 
         while (d.hasRemaining()) {
             Object o = d.readObject();
-            if (o instanceof Map) {
-                //noinspection unchecked
-                mViews.add((Map<Short, Object>) o);
+            if (o instanceof PropertyMap) {
+                mViews.add((PropertyMap) o);
             }
         }
 
@@ -56,32 +51,33 @@ public class ViewDumpParser {
             return;
         }
 
-        if (dataIncludesWindowPosition) {
-          // Attach window position info.
-          mViews.get(0).put(windowLeftKey, windowLeftValue);
-          mViews.get(0).put(windowTopKey, windowTopValue);
-        }
-
         // the last one is the property map
         mStringTable = mViews.remove(mViews.size() - 1);
         mIds = reverse(mStringTable);
-    }
 
-    private Object getProperty(Map<Short, Object> props, String key) {
-        return props.get(mIds.get(key));
+        if (dataIncludesWindowPosition && !mViews.isEmpty()) {
+          // Attach window position info.
+          for (int i = 0; i < windowPosition.size(); i++) {
+              mViews.get(0).putPrimitive(windowPosition.keyAt(i), windowPosition.typeAt(i),
+                      windowPosition.bitsAt(i));
+          }
+        }
     }
 
-    private static Map<String, Short> reverse(Map<Short, Object> m) {
+    private static Map<String, Short> reverse(PropertyMap m) {
         Map<String, Short> r = new HashMap<String, Short>(m.size());
 
-        for (Map.Entry<Short, Object> e : m.entrySet()) {
-            r.put((String)e.getValue(), e.getKey());
+        for (int i = 0; i < m.size(); i++) {
+            Object name = m.refAt(i);
+            if (name instanceof String) {
+                r.put((String) name, m.keyAt(i));
+            }
         }
 
         return r;
     }
 
-    public List<Map<Short, Object>> getViews() {
+    public List<PropertyMap> getViews() {
         return mViews;
     }
 
@@ -93,8 +89,9 @@ public class ViewDumpParser {
         return mIds.get(name);
     }
 
-    public String getPropertyName(Short key) {
-        Object v = mStringTable.get(key);
+    public String getPropertyName(short key) {
+        int index = mStringTable.indexOfKey(key);
+        Object v = index >= 0 ? mStringTable.refAt(index) : null;
         return v instanceof String ? (String) v : null;
     }
 }
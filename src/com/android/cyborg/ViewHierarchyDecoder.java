@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a tree of {@link ViewNode}s from an encoded view hierarchy dump in a single pass.
+ *
+ * <p>Each view is an encoded map whose children are nested maps. Property keys are shorts that
+ * are only named by the string table at the very end of the dump, so nodes collect their raw
+ * entries while the buffer is read and are initialized once the table has been decoded.
+ */
+public class ViewHierarchyDecoder {
+
+    private final Decoder mDecoder;
+    private final Window mWindow;
+    private final List<PropertyMap> mScratchMaps = new ArrayList<PropertyMap>();
+    private int mDepth;
+
+    private ViewHierarchyDecoder(ByteBuffer data, Window window) {
+        mDecoder = new Decoder(data);
+        mWindow = window;
+    }
+
+    /** Returns the root of the decoded hierarchy, or null if the dump holds no view. */
+    public static ViewNode decode(byte[] data, Window window) {
+        return decode(data, data.length, window, false);
+    }
+
+    /**
+     * Same as above. With lazy strings, string properties are only decoded when first read, and
+     * the views keep the data alive until then.
+     */
+    public static ViewNode decode(byte[] data, Window window, boolean lazyStrings) {
+        return decode(data, data.length, window, lazyStrings);
+    }
+
+    /** Same as above, for a dump held by the first {@code length} bytes of the data. */
+    public static ViewNode decode(byte[] data, int length, Window window, boolean lazyStrings) {
+        ViewHierarchyDecoder decoder =
+                new ViewHierarchyDecoder(ByteBuffer.wrap(data, 0, length), window);
+        decoder.mDecoder.setLazyStrings(lazyStrings);
+        return decoder.decode(data[0] == 'S');
+    }
+
+    private ViewNode decode(boolean dataIncludesWindowPosition) {
+        PropertyMap windowPosition = new PropertyMap();
+        if (dataIncludesWindowPosition) {
+            mDecoder.readValue(windowPosition, mDecoder.readMapKey());
+            mDecoder.readValue(windowPosition, mDecoder.readMapKey());
+        }
+
+        // The last top level map is the string table, every other one is a view.
+        List<ViewNode2> topLevelNodes = new ArrayList<ViewNode2>(2);
+        while (mDecoder.hasRemaining()) {
+            if (mDecoder.isNextMap()) {
+                topLevelNodes.add(readNode(null));
+            } else {
+                mDecoder.readObject();
+            }
+        }
+        if (topLevelNodes.size() < 2) {
+            return null;
+        }
+
+        String[] propertyNames = topLevelNodes.remove(topLevelNodes.size() - 1).toStringTable();
+        int[] symbolsByKey = new int[propertyNames.length];
+        for (int key = 0; key < propertyNames.length; key++) {
+            symbolsByKey[key] = propertyNames[key] != null
+                    ? PropertySymbols.intern(propertyNames[key]) : PropertySymbols.UNKNOWN;
+        }
+        ViewNode2 root = topLevelNodes.get(0);
+        // Attach window position info.
+        for (int i = 0; i < windowPosition.size(); i++) {
+            root.getPendingProperties().putPrimitive(windowPosition.keyAt(i),
+                    windowPosition.typeAt(i), windowPosition.bitsAt(i));
+        }
+        initialize(root, symbolsByKey, new PropertyShape.Cache());
+        return root;
+    }
+
+    private ViewNode2 readNode(ViewNode parent) {
+        ViewNode2 node = new ViewNode2(mWindow, parent);
+        // Properties are collected in a scratch map reused by every view at the same depth, and
+        // only copied to the node once their count is known.
+        if (mDepth == mScratchMaps.size()) {
+            mScratchMaps.add(new PropertyMap(128));
+        }
+        PropertyMap properties = mScratchMaps.get(mDepth++);
+        mDecoder.beginMap();
+        while (true) {
+            short key = mDecoder.readMapKey();
+            if (key == Decoder.END_MAP) {
+                break;
+            }
+            if (mDecoder.isNextMap()) {
+                // Nested maps are the children, in order.
+                readNode(node);
+            } else {
+                mDecoder.readValue(properties, key);
+            }
+        }
+        node.setPendingProperties(properties.copy());
+        properties.clear();
+        mDepth--;
+        return node;
+    }
+
+    private static void initialize(ViewNode2 node, int[] symbolsByKey,
+            PropertyShape.Cache shapes) {
+        node.initialize(symbolsByKey, shapes);
+        for (int i = 0; i < node.children.size(); i++) {
+            initialize((ViewNode2) node.children.get(i), symbolsByKey, shapes);
+        }
+    }
+}
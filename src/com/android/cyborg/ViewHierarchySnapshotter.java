@@ -25,167 +25,480 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.SortedMultiset;
 
 import java.io.BufferedReader;
-import java.io.StringReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ViewHierarchySnapshotter {
 
   public static List<ViewNode> getNodesForFilter(CyborgDevice device, final Filter filter) {
-    Client[] allClients = device.getClients();
-    ExecutorService executorService = Executors.newFixedThreadPool(10);
-    List<Callable<List<ViewNode>>> callables = new ArrayList<>();
+    return query(device, filter).getNodes(0);
+  }
+
+  /**
+   * Captures every window at most once and evaluates all the given filters against it in a single
+   * traversal, returning the matches for each filter.
+   */
+  public static QueryResult query(CyborgDevice device, Filter... filters) {
+    ExecutorService executorService = device.getCaptureExecutor();
+    List<Callable<List<List<ViewNode>>>> callables = new ArrayList<>();
+    for (Window window : getWindows(device, filters)) {
+      callables.add(new HierarchyExplorerCallable(window, device, filters, Integer.MAX_VALUE,
+          new AtomicBoolean()));
+    }
+
+    List<List<ViewNode>> found = new ArrayList<>();
+    for (int i = 0; i < filters.length; i++) {
+      found.add(new ArrayList<ViewNode>());
+    }
+    try {
+      List<Future<List<List<ViewNode>>>> tasks = executorService.invokeAll(callables);
+
+      for (Future<List<List<ViewNode>>> task : tasks) {
+        List<List<ViewNode>> windowMatches = task.get();
+        for (int i = 0; i < filters.length; i++) {
+          found.get(i).addAll(windowMatches.get(i));
+        }
+      }
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException: " + e.getCause());
+    } catch (ExecutionException e) {
+      System.err.println("ExecutionException: " + e.getCause());
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw);
+      e.printStackTrace(pw);
+      System.err.println(sw.toString());
+    }
 
-    for (Client c : allClients) {
+    return new QueryResult(filters, found);
+  }
+
+  /**
+   * Returns up to {@code limit} views matching the filter, in no particular window order. Windows
+   * are searched in parallel, and as soon as enough views are found the windows still being
+   * captured or searched are cancelled, so the wait is bounded by the fastest matching windows.
+   */
+  public static List<ViewNode> findNodes(CyborgDevice device, Filter filter, int limit) {
+    List<ViewNode> found = new ArrayList<>();
+    if (limit <= 0) {
+      return found;
+    }
+    Filter[] filters = new Filter[] {filter};
+    AtomicBoolean done = new AtomicBoolean();
+    CompletionService<List<List<ViewNode>>> completionService =
+        new ExecutorCompletionService<>(device.getCaptureExecutor());
+    List<Future<List<List<ViewNode>>>> tasks = new ArrayList<>();
+    for (Window window : getWindows(device, filters)) {
+      tasks.add(completionService.submit(
+          new HierarchyExplorerCallable(window, device, filters, limit, done)));
+    }
+    try {
+      for (int i = 0; i < tasks.size() && found.size() < limit; i++) {
+        List<ViewNode> windowMatches;
+        try {
+          windowMatches = completionService.take().get().get(0);
+        } catch (ExecutionException e) {
+          // Only this window is lost, the others may still have matches.
+          System.err.println("ExecutionException: " + e.getCause());
+          continue;
+        }
+        found.addAll(windowMatches.subList(0, Math.min(windowMatches.size(),
+            limit - found.size())));
+      }
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException: " + e.getCause());
+      Thread.currentThread().interrupt();
+    } finally {
+      done.set(true);
+      for (Future<List<List<ViewNode>>> task : tasks) {
+        task.cancel(true);
+      }
+    }
+    return found;
+  }
+
+  /** Returns the first view found to match the filter, or null if there is none. */
+  public static ViewNode findFirst(CyborgDevice device, Filter filter) {
+    List<ViewNode> found = findNodes(device, filter, 1);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  public static boolean exists(CyborgDevice device, Filter filter) {
+    return findFirst(device, filter) != null;
+  }
+
+  /** Returns the windows of the clients that may have views matching one of the filters. */
+  private static List<Window> getWindows(CyborgDevice device, Filter[] filters) {
+    Client[] allClients = device.getClients();
+    List<Window> windows = new ArrayList<>();
+    for (Client c : getCandidateClients(device, filters)) {
       ClientData cd = c.getClientData();
       if (cd.hasFeature(ClientData.FEATURE_VIEW_HIERARCHY)) {
         try {
-          List<String> windowTitles = new ListViewRootsHandler().getWindows(c, 5, TimeUnit.SECONDS);
+          List<String> windowTitles = getWindowTitles(device, c);
           for (final String windowTitle : windowTitles) {
-            String[] pieces = windowTitle.split("/");
-            if (pieces.length > 0 && filter.pkg != null && !pieces[0].equals(filter.pkg)) {
-              continue;
+            for (Filter filter : filters) {
+              if (filter.matchesWindow(windowTitle)) {
+                windows.add(new Window(windowTitle, c));
+                break;
+              }
             }
-            if (pieces.length > 1 && filter.activity != null && !pieces[1].equals(filter.activity)) {
-              continue;
-            }
-            callables.add(new HierarchyExplorerCallable(new Window(windowTitle, c), device, filter));
           }
         } catch (IOException ignored) { }
       }
     }
+    device.getWindowListCache().retainClients(allClients);
+    return windows;
+  }
+
+  /** Captures every window of the device, reusing the cached snapshots that are still fresh. */
+  public static List<WindowSnapshot> getSnapshots(CyborgDevice device) {
+    return getSnapshots(device, getWindows(device, new Filter[] {Filter.empty()}));
+  }
 
-    List<ViewNode> foundRects = new ArrayList<>();
+  /** Returns the windows of the client, or of every client if it is null. */
+  static List<Window> getWindows(CyborgDevice device, Client client) {
+    if (client == null) {
+      return getWindows(device, new Filter[] {Filter.empty()});
+    }
+    List<Window> windows = new ArrayList<>();
     try {
-      List<Future<List<ViewNode>>> tasks = executorService.invokeAll(callables);
+      for (String title : getWindowTitles(device, client)) {
+        windows.add(new Window(title, client));
+      }
+    } catch (IOException ignored) { }
+    return windows;
+  }
+
+  /** Captures the given windows, reusing the cached snapshots that are still fresh. */
+  static List<WindowSnapshot> getSnapshots(final CyborgDevice device, List<Window> windows) {
+    List<Callable<WindowSnapshot>> callables = new ArrayList<>();
+    for (final Window window : windows) {
+      callables.add(new Callable<WindowSnapshot>() {
+        @Override
+        public WindowSnapshot call() {
+          return getSnapshot(device, window);
+        }
+      });
+    }
 
-      for (Future<List<ViewNode>> rectList : tasks) {
-        foundRects.addAll(rectList.get());
+    List<WindowSnapshot> snapshots = new ArrayList<>();
+    try {
+      for (Future<WindowSnapshot> task : device.getCaptureExecutor().invokeAll(callables)) {
+        WindowSnapshot snapshot = task.get();
+        if (snapshot != null) {
+          snapshots.add(snapshot);
+        }
       }
     } catch (InterruptedException e) {
       System.err.println("InterruptedException: " + e.getCause());
     } catch (ExecutionException e) {
       System.err.println("ExecutionException: " + e.getCause());
-      StringWriter sw = new StringWriter();
-      PrintWriter pw = new PrintWriter(sw);
-      e.printStackTrace(pw);
-      System.err.println(sw.toString());
+    }
+    return snapshots;
+  }
+
+  /**
+   * Returns the clients whose windows may match one of the filters, so that processes of other
+   * packages are not even asked for their windows.
+   */
+  private static Collection<Client> getCandidateClients(CyborgDevice device, Filter[] filters) {
+    Set<Client> clients = new LinkedHashSet<>();
+    for (Filter filter : filters) {
+      if (filter.pkg == null) {
+        return Arrays.asList(device.getClients());
+      }
+      clients.addAll(device.getClientsForPackage(filter.pkg));
+    }
+    return clients;
+  }
+
+  /**
+   * Returns the titles of the client's windows, only asking the client for them when the cached
+   * list is missing or stale.
+   */
+  private static List<String> getWindowTitles(CyborgDevice device, Client client)
+      throws IOException {
+    WindowListCache cache = device.getWindowListCache();
+    List<String> windowTitles = cache.get(client);
+    if (windowTitles != null) {
+      return windowTitles;
+    }
+    long generation = cache.generation();
+    ListViewRootsHandler handler = new ListViewRootsHandler();
+    windowTitles = handler.getWindows(client, 5, TimeUnit.SECONDS);
+    if (handler.hasResult()) {
+      cache.put(client, windowTitles, generation);
+    }
+    return windowTitles;
+  }
+
+  /**
+   * Returns the client whose cached window snapshots cover the given point of the display, or
+   * null if that is not exactly one client. Nothing is captured.
+   */
+  static Client findCachedClientAt(CyborgDevice device, int x, int y) {
+    Client found = null;
+    for (WindowSnapshot snapshot : device.getSnapshotCache().getAll()) {
+      Client client = snapshot.getWindow().getClient();
+      if (client != found && findVisibleRect(snapshot.getRoot()).contains(x, y)) {
+        if (found != null) {
+          return null;
+        }
+        found = client;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns a fingerprint of the screen that is much cheaper to take than a capture: the windows
+   * of every client, and the root view of each of them without its children. A different value
+   * means the screen changed; an equal one does not rule out changes deeper in the hierarchies.
+   *
+   * <p>The window lists it fetches replace the cached ones, so a capture that follows does not
+   * list them again.
+   */
+  static long probe(CyborgDevice device) {
+    return probe(device, null);
+  }
+
+  /** Same as {@link #probe(CyborgDevice)}, for the windows of one client only if not null. */
+  static long probe(final CyborgDevice device, Client only) {
+    final WindowListCache cache = device.getWindowListCache();
+    if (only == null) {
+      cache.invalidate();
+    } else {
+      cache.invalidate(only);
+    }
+    final long generation = cache.generation();
+    Client[] clients = only == null ? device.getClients() : new Client[] {only};
+    List<Callable<Long>> callables = new ArrayList<>();
+    for (final Client client : clients) {
+      if (!client.getClientData().hasFeature(ClientData.FEATURE_VIEW_HIERARCHY)) {
+        continue;
+      }
+      callables.add(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          ListViewRootsHandler handler = new ListViewRootsHandler();
+          List<String> titles = handler.getWindows(client, 5, TimeUnit.SECONDS);
+          if (!handler.hasResult()) {
+            return 0L;
+          }
+          cache.put(client, titles, generation);
+          long hash = client.getClientData().getPid();
+          for (String title : titles) {
+            hash = 31 * hash + title.hashCode();
+            hash = 31 * hash + hashRootView(device, new Window(title, client));
+          }
+          return hash;
+        }
+      });
     }
 
-    executorService.shutdown();
-    return foundRects;
+    long fingerprint = clients.length;
+    try {
+      for (Future<Long> task : device.getCaptureExecutor().invokeAll(callables)) {
+        try {
+          fingerprint = 31 * fingerprint + task.get();
+        } catch (ExecutionException e) {
+          // A client that could not be probed, which counts as a change once it can be again.
+          fingerprint = 31 * fingerprint - 1;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (only == null) {
+      cache.retainClients(clients);
+    }
+    return fingerprint;
+  }
+
+  /** Hashes the dump of the root view of the window, skipping its children. */
+  private static int hashRootView(CyborgDevice device, Window window) throws IOException {
+    CaptureBufferPool buffers = device.getCaptureBufferPool();
+    CaptureByteArrayHandler handler =
+        new CaptureByteArrayHandler(HandleViewDebug.CHUNK_VURT, buffers, false);
+    HandleViewDebug.dumpViewHierarchy(
+        window.getClient(), window.getTitle(),
+        true  /* skipChildren */,
+        true  /* includeProperties */,
+        handler);
+    byte[] data = handler.getData(5, TimeUnit.SECONDS);
+    if (data == null) {
+      return 0;
+    }
+    int hash = 1;
+    for (int i = 0; i < handler.getLength(); i++) {
+      hash = 31 * hash + data[i];
+    }
+    buffers.release(data);
+    return hash;
   }
 
   public static String getAllAvailableLayoutInfo(ViewNode node) {
     return "(" +
         "l=" + node.left + " " +
         "t=" + node.top + " " +
-        "b=" + node.namedProperties.get("layout:bottom").value + " " +
-        "r=" + node.namedProperties.get("layout:right").value + " " +
+        "b=" + node.getString("layout:bottom") + " " +
+        "r=" + node.getString("layout:right") + " " +
         "w=" + node.width + " " +
         "h=" + node.height + " " +
         "tX=" + node.translationX + " " +
         "tY=" + node.translationY + " " +
-        "tZ=" + node.namedProperties.get("drawing:translationZ").value + " " +
+        "tZ=" + node.getString("drawing:translationZ") + " " +
         "sX=" + node.scrollX + " " +
         "sY=" + node.scrollY + " " +
-        "r=" + node.namedProperties.get("drawing:rotation").value + " " +
-        "rX=" + node.namedProperties.get("drawing:rotationX").value + " " +
-        "rY=" + node.namedProperties.get("drawing:rotationY").value + " " +
-        "sX=" + node.namedProperties.get("drawing:scaleX").value + " " +
-        "sY=" + node.namedProperties.get("drawing:scaleY").value + " " +
+        "r=" + node.getString("drawing:rotation") + " " +
+        "rX=" + node.getString("drawing:rotationX") + " " +
+        "rY=" + node.getString("drawing:rotationY") + " " +
+        "sX=" + node.getString("drawing:scaleX") + " " +
+        "sY=" + node.getString("drawing:scaleY") + " " +
         ")";
   }
 
+  /**
+   * Returns the bounds of the view on the display. Views of a captured snapshot have them
+   * computed already, others are positioned by walking up to their root.
+   */
   public static Rect findVisibleRect(ViewNode root) {
-    ViewNode currentParent = root.parent;
-    int globalX = root.left;
-    int globalY = root.top;
-    // System.err.println(root.id + " " + getAllAvailableLayoutInfo(root));
-    while (currentParent != null) {
-      // System.err.println(currentParent.id + " " + getAllAvailableLayoutInfo(currentParent));
-      float translationX = Float.parseFloat(currentParent.namedProperties.get("drawing:translationX").value);
-      float translationY = Float.parseFloat(currentParent.namedProperties.get("drawing:translationY").value);
-      // System.err.println("Visibility: " + currentParent.namedProperties.get("misc:visibility").value);
-
-      globalX += currentParent.left;
-      globalY += currentParent.top;
-      globalX += translationX;
-      globalY += translationY;
-      /* if (currentParent.parent == null) {
-        System.err.println("Root");
-      } */
-      if (currentParent.parent == null) {
-        if (currentParent.namedProperties.containsKey("window:left")) {
-          globalX += Integer.parseInt(currentParent.namedProperties.get("window:left").value);
-          globalY += Integer.parseInt(currentParent.namedProperties.get("window:top").value);
-        }
-        // System.err.println(currentParent.namedProperties);
-      }
-      currentParent = currentParent.parent;
+    if (root.hasAbsoluteBounds) {
+      return new Rect(root.absoluteLeft, root.absoluteTop, root.width, root.height);
+    }
+    if (root.parent == null) {
+      return new Rect(root.left, root.top, root.width, root.height);
+    }
+    float[] origin = findOrigin(root.parent);
+    return new Rect((int) (origin[0] + root.left), (int) (origin[1] + root.top), root.width,
+        root.height);
+  }
+
+  // Returns where the children of the given view are laid out from.
+  private static float[] findOrigin(ViewNode node) {
+    float[] origin;
+    if (node.parent == null) {
+      origin = new float[] {
+          node.getInt(PropertySymbols.WINDOW_LEFT, 0), node.getInt(PropertySymbols.WINDOW_TOP, 0)
+      };
+    } else {
+      origin = findOrigin(node.parent);
     }
-    int x = 0, y = 0, width = 10, height = 10;
-    // System.err.println("Coords: " + globalX + "," + globalY + " " + root.width + "x" + root.height + "\n");
-    return new Rect(globalX, globalY, root.width, root.height);
+    origin[0] += node.left;
+    origin[1] += node.top;
+    origin[0] += node.translationX;
+    origin[1] += node.translationY;
+    return origin;
   }
 
-  private static class HierarchyExplorerCallable implements Callable<List<ViewNode>> {
-    private final Filter filter;
+  /**
+   * Computes the bounds on the display of every view under the given root in a single pass, so
+   * that {@link #findVisibleRect(ViewNode)} no longer walks up the hierarchy. Each view is offset
+   * by its parent's position, its parent's translation and, below the root, the window position.
+   */
+  static void computeAbsoluteBounds(ViewNode root) {
+    root.absoluteLeft = root.left;
+    root.absoluteTop = root.top;
+    root.hasAbsoluteBounds = true;
+    float originX = root.getInt(PropertySymbols.WINDOW_LEFT, 0) + root.left + root.translationX;
+    float originY = root.getInt(PropertySymbols.WINDOW_TOP, 0) + root.top + root.translationY;
+    computeAbsoluteBounds(root.children, originX, originY);
+  }
+
+  private static void computeAbsoluteBounds(List<ViewNode> nodes, float originX, float originY) {
+    for (int i = 0; i < nodes.size(); i++) {
+      ViewNode node = nodes.get(i);
+      node.absoluteLeft = (int) (originX + node.left);
+      node.absoluteTop = (int) (originY + node.top);
+      node.hasAbsoluteBounds = true;
+      computeAbsoluteBounds(node.children, originX + node.left + node.translationX,
+          originY + node.top + node.translationY);
+    }
+  }
+
+  private static class HierarchyExplorerCallable implements Callable<List<List<ViewNode>>> {
+    private final Filter[] filters;
     private final Client client;
     private final CyborgDevice device;
     private final String windowTitle;
-    private final List<ViewNode> foundEls = new ArrayList<>();
+    private final int limit;
+    // Set once the caller has all the results it needs.
+    private final AtomicBoolean done;
 
-    public  HierarchyExplorerCallable(Window window, CyborgDevice device, Filter filter) {
+    public  HierarchyExplorerCallable(Window window, CyborgDevice device, Filter[] filters,
+        int limit, AtomicBoolean done) {
       this.client = window.getClient();
       this.windowTitle = window.getTitle();
       this.device = device;
-      this.filter = filter;
+      this.filters = filters;
+      this.limit = limit;
+      this.done = done;
     }
 
-    public List<ViewNode> call() {
-      ViewNode root = loadWindowData(15, TimeUnit.SECONDS, new Window(windowTitle, client));
-      recursivelySearchWithFilter(root, filter);
-      return foundEls;
+    public List<List<ViewNode>> call() {
+      WindowSnapshot snapshot = getSnapshot(device, new Window(windowTitle, client));
+      if (snapshot == null || done.get()) {
+        if (snapshot == null && !done.get()) {
+          // The window may be gone, list the client's windows again next time. A capture
+          // cut short by cancellation says nothing about the window.
+          device.getWindowListCache().invalidate(client);
+        }
+        List<List<ViewNode>> none = new ArrayList<>();
+        for (int i = 0; i < filters.length; i++) {
+          none.add(new ArrayList<ViewNode>());
+        }
+        return none;
+      }
+      return planFor(windowTitle, filters).execute(snapshot.getIndex(), device.displayWidth,
+          device.displayHeight, limit);
     }
+  }
 
-    public void recursivelySearchWithFilter(ViewNode root, Filter filter) {
-      if (root == null) {
-        return;
-      }
-      if (!viewIsVisible(root, device)) {
-        return;
-      }
-      if (filter.apply(root)) {
-        foundEls.add(root);
-      }
-      for (int i = 0; i < root.children.size(); i++) {
-        recursivelySearchWithFilter(root.children.get(i), filter);
-      }
+  /** Plans the filters for a window, leaving out those scoped to another package or activity. */
+  private static QueryPlan planFor(String windowTitle, Filter[] filters) {
+    List<Filter> windowFilters = new ArrayList<>();
+    for (Filter filter : filters) {
+      windowFilters.add(filter.matchesWindow(windowTitle) ? filter : null);
     }
+    return new QueryPlan(windowFilters);
   }
 
-  private static boolean viewIsVisible(ViewNode node, CyborgDevice device) {
-    int visibility = Integer.parseInt(node.namedProperties.get("misc:visibility").value);
-    if (visibility != 0 /* View.VISIBLE */) {
-      return false;
+  /**
+   * Describes how the filters would be evaluated against each window of the device, with the
+   * estimated cost of each step.
+   */
+  public static String explain(CyborgDevice device, Filter... filters) {
+    StringBuilder out = new StringBuilder();
+    for (WindowSnapshot snapshot : getSnapshots(device)) {
+      String title = snapshot.getWindow().getTitle();
+      SnapshotIndex index = snapshot.getIndex();
+      out.append("window ").append(title).append(", ").append(index.size()).append(" views\n");
+      out.append(planFor(title, filters).explain(index));
     }
-    Rect rect = findVisibleRect(node);
-    if (rect.x > device.displayWidth ||
-        rect.y > device.displayHeight ||
+    return out.toString();
+  }
+
+  static boolean isOnDisplay(Rect rect, int displayWidth, int displayHeight) {
+    if (rect.x > displayWidth ||
+        rect.y > displayHeight ||
         rect.x + rect.w < 0 ||
         rect.y + rect.h < 0) {
       return false;
@@ -193,16 +506,50 @@ public class ViewHierarchySnapshotter {
     return true;
   }
 
+  /**
+   * Returns the hierarchy of the given window, reusing the device's cached snapshot when it is
+   * still fresh, or null if the window could not be captured.
+   */
+  public static WindowSnapshot getSnapshot(CyborgDevice device, Window window) {
+    SnapshotCache cache = device.getSnapshotCache();
+    WindowSnapshot snapshot = cache.get(window);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    long generation = cache.generation();
+    ViewNode root = loadWindowData(15, TimeUnit.SECONDS, window, device.getCaptureBufferPool(),
+        device.isLazyStrings());
+    if (root == null) {
+      return null;
+    }
+    snapshot = new WindowSnapshot(window, root, System.currentTimeMillis());
+    if (device.isCompactSnapshots()) {
+      snapshot = snapshot.toCompact();
+    }
+    cache.put(snapshot, generation);
+    return snapshot;
+  }
+
   /**
    * Byte array representing the view hierachy dump of the window.
    */
   public static ViewNode loadWindowData(long timeout, TimeUnit unit, Window window) {
+    return loadWindowData(timeout, unit, window, null, false);
+  }
+
+  /**
+   * Same as above, receiving the dump into a buffer from the given pool, if any, and given back
+   * once parsed. A dump that lazy strings will point into gets a buffer of its own instead.
+   */
+  private static ViewNode loadWindowData(long timeout, TimeUnit unit, Window window,
+      CaptureBufferPool buffers, boolean lazyStrings) {
     Client client = window.getClient();
     if (client == null) {
       return null;
     }
     String title = window.getTitle();
-    CaptureByteArrayHandler handler = new CaptureByteArrayHandler(HandleViewDebug.CHUNK_VURT);
+    CaptureByteArrayHandler handler =
+        new CaptureByteArrayHandler(HandleViewDebug.CHUNK_VURT, buffers, lazyStrings);
 
     try {
       HandleViewDebug.dumpViewHierarchy(
@@ -219,58 +566,31 @@ public class ViewHierarchySnapshotter {
     if (data == null) {
       return null;
     }
+    int length = handler.getLength();
 
-    ViewNode viewNode = parseViewHierarchy(data, window);
-
-    ViewDumpParser parser = new ViewDumpParser();
-    parser.parse(data);
-    List<Map<Short, Object>> views = parser.getViews();
-    return viewNode;
-  }
-
-  private static ViewNode parseViewHierarchy(byte[] data, Window window) {
-    if (data == null) {
-      return null;
-    }
-    if (isEncoded(data)) {
-      ViewDumpParser parser = new ViewDumpParser();
-      parser.parse(data);
-      if (parser.getViews().isEmpty()) {
-        return null;
+    try {
+      return parseViewHierarchy(data, length, window, lazyStrings);
+    } finally {
+      if (handler.isPooled()) {
+        buffers.release(data);
       }
-      return parseViewHierarchy(window, null, parser.getViews().get(0), parser);
-    } else {
-      String viewHierarchy = new String(data, Charset.forName("UTF-8"));
-      return parseViewHierarchy(
-          new BufferedReader(new StringReader(viewHierarchy)), window);
     }
   }
 
-  private static ViewNode parseViewHierarchy(Window window,
-      ViewNode parent,
-      Map<Short, Object> viewProps,
-      ViewDumpParser parser) {
-    ViewNode root = ViewNode.create(window, parent, viewProps, parser);
-    Object v = viewProps.get(parser.getPropertyKey("meta:__childCount__"));
-    int n = 0;
-    if (v instanceof Integer) {
-      n = (Integer) v;
-    } else if (v instanceof Short) {
-      n = (Short) v;
-    }
-
-    for (int i = 0; i < n; i++) {
-      Map<Short, Object> childViewProps = (Map<Short, Object>) viewProps
-          .get(parser.getPropertyKey("meta:__child__" + i));
-      parseViewHierarchy(window, root, childViewProps, parser);
+  private static ViewNode parseViewHierarchy(byte[] data, int length, Window window,
+      boolean lazyStrings) {
+    if (isEncoded(data, length)) {
+      return ViewHierarchyDecoder.decode(data, length, window, lazyStrings);
+    } else {
+      return ViewHierarchyTextParser.parse(data, length, window);
     }
-
-    return root;
   }
 
   public static ViewNode parseViewHierarchy(BufferedReader in, Window window) {
     ViewNode currentNode = null;
     int currentDepth = -1;
+    // Shared by every view, which mostly have the same properties.
+    PropertyShape.Cache shapes = new PropertyShape.Cache();
     String line;
     try {
       while ((line = in.readLine()) != null) {
@@ -287,7 +607,7 @@ public class ViewHierarchySnapshotter {
           }
           currentDepth--;
         }
-        currentNode = ViewNode.create(window, currentNode, line.substring(depth));
+        currentNode = ViewNode.create(window, currentNode, line.substring(depth), shapes);
         currentDepth = depth;
       }
     } catch (IOException e) {
@@ -304,9 +624,9 @@ public class ViewHierarchySnapshotter {
     return currentNode;
   }
 
-  private static boolean isEncoded(byte[] data) {
+  private static boolean isEncoded(byte[] data, int length) {
     // The first byte should be the "S" corresponding to the first short for window position.
-    return data != null && (data[0] == 'S' || data[0] == 'M');
+    return length > 0 && (data[0] == 'S' || data[0] == 'M');
   }
 
   private void addAll(ViewNode node, SortedMultiset<String> set, Map<String, ViewNode> props) {
@@ -321,6 +641,7 @@ public class ViewHierarchySnapshotter {
   private static class ListViewRootsHandler extends HandleViewDebug.ViewDumpHandler {
 
     private final List<String> myViewRoots = Lists.newCopyOnWriteArrayList();
+    private volatile boolean myHasResult;
 
     public ListViewRootsHandler() {
       super(HandleViewDebug.CHUNK_VULW);
@@ -334,6 +655,12 @@ public class ViewHierarchySnapshotter {
         int len = data.getInt();
         myViewRoots.add(getString(data, len));
       }
+      myHasResult = true;
+    }
+
+    /** Whether the client answered, as opposed to the request timing out. */
+    public boolean hasResult() {
+      return myHasResult;
     }
 
     public List<String> getWindows(Client c, long timeout, TimeUnit unit) throws IOException {
@@ -349,23 +676,50 @@ public class ViewHierarchySnapshotter {
 
 
   private static class CaptureByteArrayHandler extends HandleViewDebug.ViewDumpHandler {
-    public CaptureByteArrayHandler(int type) {
+    private final CaptureBufferPool mBuffers;
+    private final boolean mKeepEncoded;
+
+    /**
+     * Receives dumps into buffers from the given pool, if any, except for encoded dumps when
+     * {@code keepEncoded} is set, as those stay referenced by their lazy strings.
+     */
+    public CaptureByteArrayHandler(int type, CaptureBufferPool buffers, boolean keepEncoded) {
       super(type);
+      mBuffers = buffers;
+      mKeepEncoded = keepEncoded;
     }
 
     private AtomicReference<byte[]> mData = new AtomicReference<byte[]>();
+    private volatile int mLength;
+    private volatile boolean mPooled;
 
     @Override
     protected void handleViewDebugResult(ByteBuffer data) {
-      byte[] b = new byte[data.remaining()];
-      data.get(b);
+      // ddmlib reuses the buffer it hands out, so the dump has to be copied before returning.
+      int length = data.remaining();
+      boolean kept = mKeepEncoded && length > 0
+          && (data.get(data.position()) == 'S' || data.get(data.position()) == 'M');
+      boolean pooled = mBuffers != null && !kept;
+      byte[] b = pooled ? mBuffers.acquire(length) : new byte[length];
+      data.get(b, 0, length);
+      mLength = length;
+      mPooled = pooled;
       mData.set(b);
-
     }
 
     public byte[] getData(long timeout, TimeUnit unit) {
       waitForResult(timeout, unit);
       return mData.get();
     }
+
+    /** Number of bytes of the data that hold the dump, the rest of a pooled buffer is unused. */
+    public int getLength() {
+      return mLength;
+    }
+
+    /** Whether the data came from the pool, to be given back to it. */
+    public boolean isPooled() {
+      return mPooled;
+    }
   }
 }
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a tree of {@link ViewNode}s from a view hierarchy dump in the legacy text format,
+ * reading the bytes of the dump directly.
+ *
+ * <p>Each line is a view, indented by its depth, of the form
+ * {@code name@hashCode key=length,value key=length,value...} where the length of a value counts
+ * UTF-16 chars. Property names are resolved to symbols through a table keyed by their bytes, and
+ * short values, which repeat across views, are shared, so no per-view substrings are made.
+ */
+public class ViewHierarchyTextParser {
+
+    // Values up to this many bytes are shared between views: numbers, booleans, enum names.
+    private static final int MAX_SHARED_VALUE_LENGTH = 24;
+
+    private static final byte[] DONE = { 'D', 'O', 'N', 'E', '.' };
+
+    private final byte[] mData;
+    private final int mLength;
+    private final Window mWindow;
+    private final ByteTable mSymbols = new ByteTable();
+    private final ByteTable mValues = new ByteTable();
+    private final PropertyShape.Cache mShapes = new PropertyShape.Cache();
+    private int[] mSymbolScratch = new int[128];
+    private byte[] mTypeScratch = new byte[128];
+    private Object[] mRefScratch = new Object[128];
+
+    private ViewHierarchyTextParser(byte[] data, int length, Window window) {
+        mData = data;
+        mLength = length;
+        mWindow = window;
+        Arrays.fill(mTypeScratch, Decoder.SIG_STRING);
+    }
+
+    /** Returns the root of the parsed hierarchy, or null if the dump holds no view. */
+    public static ViewNode parse(byte[] data, Window window) {
+        return parse(data, data.length, window);
+    }
+
+    /** Same as above, for a dump held by the first {@code length} bytes of the data. */
+    public static ViewNode parse(byte[] data, int length, Window window) {
+        return new ViewHierarchyTextParser(data, length, window).parse();
+    }
+
+    private ViewNode parse() {
+        ViewNode currentNode = null;
+        int currentDepth = -1;
+        int start = 0;
+        while (start < mLength) {
+            int end = indexOf('\n', start, mLength);
+            int next = end + 1;
+            if (end < 0) {
+                end = mLength;
+                next = end;
+            }
+            if (end > start && mData[end - 1] == '\r') {
+                end--;
+            }
+            if (isDone(start, end)) {
+                break;
+            }
+            int depth = 0;
+            while (start + depth < end && mData[start + depth] == ' ') {
+                depth++;
+            }
+            if (start + depth < end) {
+                while (depth <= currentDepth) {
+                    if (currentNode != null) {
+                        currentNode = currentNode.parent;
+                    }
+                    currentDepth--;
+                }
+                currentNode = readNode(currentNode, start + depth, end);
+                currentDepth = depth;
+            }
+            start = next;
+        }
+        if (currentNode == null) {
+            return null;
+        }
+        while (currentNode.parent != null) {
+            currentNode = currentNode.parent;
+        }
+        return currentNode;
+    }
+
+    private ViewNode readNode(ViewNode parent, int start, int end) {
+        int at = indexOf('@', start, end);
+        if (at < 0) {
+            throw new IllegalArgumentException("Invalid format for ViewNode, missing @: "
+                    + new String(mData, start, end - start, StandardCharsets.UTF_8));
+        }
+        String name = sharedString(start, at);
+        int space = indexOf(' ', at + 1, end);
+        if (space < 0) {
+            space = end;
+        }
+        String hashCode = new String(mData, at + 1, space - at - 1, StandardCharsets.UTF_8);
+
+        // Trimmed like String#trim.
+        int position = space + 1;
+        while (position < end && (mData[position] & 0xff) <= ' ') {
+            position++;
+        }
+        while (end > position && (mData[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (position >= end) {
+            return ViewNode.create(mWindow, parent, name, hashCode, null, null);
+        }
+
+        int count = 0;
+        while (position < end) {
+            int equals = indexOf('=', position, end);
+            int comma = equals < 0 ? -1 : indexOf(',', equals + 1, end);
+            if (comma < 0) {
+                throw new IllegalArgumentException("Invalid property for ViewNode " + name + ": "
+                        + new String(mData, position, end - position, StandardCharsets.UTF_8));
+            }
+            int valueStart = comma + 1;
+            int valueEnd = skipChars(valueStart, end, parseLength(equals + 1, comma));
+            if (count == mSymbolScratch.length) {
+                mSymbolScratch = Arrays.copyOf(mSymbolScratch, count * 2);
+                mRefScratch = Arrays.copyOf(mRefScratch, count * 2);
+                mTypeScratch = Arrays.copyOf(mTypeScratch, count * 2);
+                Arrays.fill(mTypeScratch, count, count * 2, Decoder.SIG_STRING);
+            }
+            mSymbolScratch[count] = symbol(position, equals);
+            mRefScratch[count] = valueEnd - valueStart <= MAX_SHARED_VALUE_LENGTH
+                    ? sharedString(valueStart, valueEnd)
+                    : new String(mData, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+            count++;
+            // Skip the space separating properties.
+            position = valueEnd + 1;
+        }
+        PropertyShape shape = mShapes.get(mSymbolScratch, mTypeScratch, count);
+        return ViewNode.create(mWindow, parent, name, hashCode, shape,
+                Arrays.copyOf(mRefScratch, count));
+    }
+
+    private int symbol(int start, int end) {
+        int hash = hash(start, end);
+        int slot = mSymbols.slotOf(mData, start, end, hash);
+        Object symbol = mSymbols.valueAt(slot);
+        if (symbol == null) {
+            symbol = PropertySymbols.intern(
+                    new String(mData, start, end - start, StandardCharsets.UTF_8));
+            mSymbols.put(slot, mData, start, end, hash, symbol);
+        }
+        return (Integer) symbol;
+    }
+
+    private String sharedString(int start, int end) {
+        int hash = hash(start, end);
+        int slot = mValues.slotOf(mData, start, end, hash);
+        Object value = mValues.valueAt(slot);
+        if (value == null) {
+            value = new String(mData, start, end - start, StandardCharsets.UTF_8);
+            mValues.put(slot, mData, start, end, hash, value);
+        }
+        return (String) value;
+    }
+
+    private int parseLength(int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            int digit = mData[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Invalid property length: "
+                        + new String(mData, start, end - start, StandardCharsets.UTF_8));
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+    /** Returns the position after the given number of UTF-16 chars, at most {@code end}. */
+    private int skipChars(int position, int end, int chars) {
+        while (chars > 0 && position < end) {
+            int b = mData[position] & 0xff;
+            if (b < 0x80) {
+                position++;
+                chars--;
+            } else if (b >= 0xf0) {
+                // Outside the BMP, a surrogate pair.
+                position += 4;
+                chars -= 2;
+            } else {
+                position += b >= 0xe0 ? 3 : 2;
+                chars--;
+            }
+        }
+        return Math.min(position, end);
+    }
+
+    private boolean isDone(int start, int end) {
+        if (end - start != DONE.length) {
+            return false;
+        }
+        for (int i = 0; i < DONE.length; i++) {
+            byte b = mData[start + i];
+            if (b != DONE[i] && b != DONE[i] + ('a' - 'A')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mData[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int hash(int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + mData[i];
+        }
+        return hash;
+    }
+
+    /** An open addressing table keyed by byte ranges, only ever growing. */
+    private static final class ByteTable {
+        private byte[][] mKeys = new byte[256][];
+        private int[] mHashes = new int[256];
+        private Object[] mValues = new Object[256];
+        private int mSize;
+
+        /** Returns the slot holding the key, or the free slot where it belongs. */
+        int slotOf(byte[] data, int start, int end, int hash) {
+            int mask = mKeys.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                byte[] key = mKeys[slot];
+                if (key == null) {
+                    return slot;
+                }
+                if (mHashes[slot] == hash && equals(key, data, start, end)) {
+                    return slot;
+                }
+            }
+        }
+
+        Object valueAt(int slot) {
+            return mValues[slot];
+        }
+
+        void put(int slot, byte[] data, int start, int end, int hash, Object value) {
+            mKeys[slot] = Arrays.copyOfRange(data, start, end);
+            mHashes[slot] = hash;
+            mValues[slot] = value;
+            if (++mSize * 2 > mKeys.length) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            byte[][] keys = mKeys;
+            int[] hashes = mHashes;
+            Object[] values = mValues;
+            mKeys = new byte[keys.length * 2][];
+            mHashes = new int[keys.length * 2];
+            mValues = new Object[keys.length * 2];
+            int mask = mKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    int slot = mix(hashes[i]) & mask;
+                    while (mKeys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    mKeys[slot] = keys[i];
+                    mHashes[slot] = hashes[i];
+                    mValues[slot] = values[i];
+                }
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(byte[] key, byte[] data, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != data[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
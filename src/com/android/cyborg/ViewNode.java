@@ -19,11 +19,8 @@ package com.android.cyborg;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 public class ViewNode {
 
@@ -37,16 +34,19 @@ public class ViewNode {
 
     public static final String MISCELLANIOUS = "miscellaneous";
 
+    /** Values of {@link #visibility}, as defined by android.view.View. */
+    public static final int VISIBLE = 0;
+
+    public static final int INVISIBLE = 4;
+
+    public static final int GONE = 8;
+
     public String id;
 
     public String name;
 
     public String hashCode;
 
-    public List<Property> properties = new ArrayList<Property>();
-
-    public Map<String, Property> namedProperties = new HashMap<String, Property>();
-
     public ViewNode parent;
 
     public List<ViewNode> children = new ArrayList<ViewNode>();
@@ -83,6 +83,8 @@ public class ViewNode {
 
     public float translationY;
 
+    public int visibility;
+
     public int baseline;
 
     public boolean willNotDraw;
@@ -105,8 +107,6 @@ public class ViewNode {
 
     public ProfileRating drawRating = ProfileRating.NONE;
 
-    public Set<String> categories = new TreeSet<String>();
-
     public Window window;
 
     public int viewCount;
@@ -115,18 +115,30 @@ public class ViewNode {
 
     public int protocolVersion;
 
+    // Position on the display, as computed by ViewHierarchySnapshotter#computeAbsoluteBounds.
+    boolean hasAbsoluteBounds;
+
+    int absoluteLeft;
+
+    int absoluteTop;
+
+    // Property values, in the slots described by the shape. Primitives are kept as raw bits,
+    // strings as references.
+    private PropertyShape shape = PropertyShape.EMPTY;
+
+    private long[] propertyBits = new long[0];
+
+    private Object[] propertyRefs = new Object[0];
+
     public static ViewNode create(Window window, ViewNode parent,
             String data) {
-        ViewNode v = new ViewNode(window, parent);
-        v.initialize(data);
-        return v;
+        return create(window, parent, data, new PropertyShape.Cache());
     }
 
-    public static ViewNode create(Window window, ViewNode parent,
-            Map<Short, Object> viewProperties,
-            ViewDumpParser parser) {
-        ViewNode2 v = new ViewNode2(window, parent);
-        v.initialize(viewProperties, parser);
+    static ViewNode create(Window window, ViewNode parent,
+            String data, PropertyShape.Cache shapes) {
+        ViewNode v = new ViewNode(window, parent);
+        v.initialize(data, shapes);
         return v;
     }
 
@@ -140,7 +152,33 @@ public class ViewNode {
         }
     }
 
-    private void initialize(String data) {
+    /** Creates a view that is not added to its parent's children, which the caller manages. */
+    ViewNode(Window window, ViewNode parent, int index) {
+        this.window = window;
+        this.parent = parent;
+        this.index = index;
+    }
+
+    /**
+     * Creates a view from properties that were already parsed, all of them held as strings. A
+     * null shape means the dump had no properties for the view.
+     */
+    static ViewNode create(Window window, ViewNode parent, String name, String hashCode,
+            PropertyShape shape, Object[] refs) {
+        ViewNode v = new ViewNode(window, parent);
+        v.name = name;
+        v.hashCode = hashCode;
+        if (shape != null) {
+            v.setProperties(shape, new long[refs.length], refs);
+            v.loadFields();
+        } else {
+            v.setDefaults();
+        }
+        v.clearTimes();
+        return v;
+    }
+
+    private void initialize(String data, PropertyShape.Cache shapes) {
         int delimIndex = data.indexOf('@');
         if (delimIndex < 0) {
             throw new IllegalArgumentException("Invalid format for ViewNode, missing @: " + data);
@@ -151,13 +189,20 @@ public class ViewNode {
         hashCode = data.substring(0, delimIndex);
 
         if (data.length() > delimIndex + 1) {
-            loadProperties(data.substring(delimIndex + 1).trim());
+            loadProperties(data.substring(delimIndex + 1).trim(), shapes);
         } else {
-            // defaults in case properties are not available
-            id = "unknown";
-            width = height = 10;
+            setDefaults();
         }
+        clearTimes();
+    }
+
+    private void setDefaults() {
+        // defaults in case properties are not available
+        id = "unknown";
+        width = height = 10;
+    }
 
+    private void clearTimes() {
         measureTime = -1;
         layoutTime = -1;
         drawTime = -1;
@@ -170,21 +215,21 @@ public class ViewNode {
         }
     }
 
-    private void loadProperties(String data) {
+    private void loadProperties(String data, PropertyShape.Cache shapes) {
+        List<Property> properties = new ArrayList<Property>();
         int start = 0;
         boolean stop;
         do {
             int index = data.indexOf('=', start);
-            ViewNode.Property property = new ViewNode.Property();
-            property.name = data.substring(start, index);
+            String name = data.substring(start, index);
 
             int index2 = data.indexOf(',', index + 1);
             int length = Integer.parseInt(data.substring(index + 1, index2));
             start = index2 + 1 + length;
-            property.value = data.substring(index2 + 1, index2 + 1 + length);
+            ViewNode.Property property =
+                    new ViewNode.Property(name, data.substring(index2 + 1, index2 + 1 + length));
 
             properties.add(property);
-            namedProperties.put(property.name, property);
 
             stop = start >= data.length();
             if (!stop) {
@@ -199,74 +244,90 @@ public class ViewNode {
             }
         });
 
-        id = namedProperties.get("mID").value; //$NON-NLS-1$
+        int count = properties.size();
+        int[] symbols = shapes.symbolScratch(count);
+        byte[] types = shapes.typeScratch(count);
+        Object[] refs = new Object[count];
+        for (int i = 0; i < count; i++) {
+            Property property = properties.get(i);
+            symbols[i] = PropertySymbols.intern(property.name);
+            types[i] = property.type;
+            refs[i] = property.ref;
+        }
+        setProperties(shapes.get(symbols, types, count), new long[count], refs);
+        loadFields();
+    }
+
+    /** Sets the layout fields of the view from its properties. */
+    void loadFields() {
+        id = getString("mID"); //$NON-NLS-1$
 
         left =
- namedProperties.containsKey("mLeft") ? getInt("mLeft", 0) : getInt("layout:mLeft", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+ hasProperty("mLeft") ? getInt("mLeft", 0) : getInt("layout:mLeft", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
                         0);
-        top = namedProperties.containsKey("mTop") ? getInt("mTop", 0) : getInt("layout:mTop", 0); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        top = hasProperty("mTop") ? getInt("mTop", 0) : getInt("layout:mTop", 0); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         width =
-                namedProperties.containsKey("getWidth()") ? getInt("getWidth()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("getWidth()") ? getInt("getWidth()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "layout:getWidth()", 0); //$NON-NLS-1$
         height =
-                namedProperties.containsKey("getHeight()") ? getInt("getHeight()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("getHeight()") ? getInt("getHeight()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "layout:getHeight()", 0); //$NON-NLS-1$
         scrollX =
-                namedProperties.containsKey("mScrollX") ? getInt("mScrollX", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mScrollX") ? getInt("mScrollX", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "scrolling:mScrollX", 0); //$NON-NLS-1$
         scrollY =
-                namedProperties.containsKey("mScrollY") ? getInt("mScrollY", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mScrollY") ? getInt("mScrollY", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "scrolling:mScrollY", 0); //$NON-NLS-1$
         paddingLeft =
-                namedProperties.containsKey("mPaddingLeft") ? getInt("mPaddingLeft", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mPaddingLeft") ? getInt("mPaddingLeft", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "padding:mPaddingLeft", 0); //$NON-NLS-1$
         paddingRight =
-                namedProperties.containsKey("mPaddingRight") ? getInt("mPaddingRight", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mPaddingRight") ? getInt("mPaddingRight", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "padding:mPaddingRight", 0); //$NON-NLS-1$
         paddingTop =
-                namedProperties.containsKey("mPaddingTop") ? getInt("mPaddingTop", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mPaddingTop") ? getInt("mPaddingTop", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "padding:mPaddingTop", 0); //$NON-NLS-1$
         paddingBottom =
-                namedProperties.containsKey("mPaddingBottom") ? getInt("mPaddingBottom", 0) //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("mPaddingBottom") ? getInt("mPaddingBottom", 0) //$NON-NLS-1$ //$NON-NLS-2$
                         : getInt("padding:mPaddingBottom", 0); //$NON-NLS-1$
         marginLeft =
-                namedProperties.containsKey("layout_leftMargin") ? getInt("layout_leftMargin", //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("layout_leftMargin") ? getInt("layout_leftMargin", //$NON-NLS-1$ //$NON-NLS-2$
                         Integer.MIN_VALUE) : getInt("layout:layout_leftMargin", Integer.MIN_VALUE); //$NON-NLS-1$
         marginRight =
-                namedProperties.containsKey("layout_rightMargin") ? getInt("layout_rightMargin", //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("layout_rightMargin") ? getInt("layout_rightMargin", //$NON-NLS-1$ //$NON-NLS-2$
                         Integer.MIN_VALUE) : getInt("layout:layout_rightMargin", Integer.MIN_VALUE); //$NON-NLS-1$
         marginTop =
-                namedProperties.containsKey("layout_topMargin") ? getInt("layout_topMargin", //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("layout_topMargin") ? getInt("layout_topMargin", //$NON-NLS-1$ //$NON-NLS-2$
                         Integer.MIN_VALUE) : getInt("layout:layout_topMargin", Integer.MIN_VALUE); //$NON-NLS-1$
         marginBottom =
-                namedProperties.containsKey("layout_bottomMargin") ? getInt("layout_bottomMargin", //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("layout_bottomMargin") ? getInt("layout_bottomMargin", //$NON-NLS-1$ //$NON-NLS-2$
                         Integer.MIN_VALUE)
                         : getInt("layout:layout_bottomMargin", Integer.MIN_VALUE); //$NON-NLS-1$
         translationX = getFloat("drawing:translationX", 0.0f);
         translationY = getFloat("drawing:translationY", 0.0f);
         baseline =
-                namedProperties.containsKey("getBaseline()") ? getInt("getBaseline()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("getBaseline()") ? getInt("getBaseline()", 0) : getInt( //$NON-NLS-1$ //$NON-NLS-2$
                         "layout:getBaseline()", 0); //$NON-NLS-1$
         willNotDraw =
-                namedProperties.containsKey("willNotDraw()") ? getBoolean("willNotDraw()", false) //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("willNotDraw()") ? getBoolean("willNotDraw()", false) //$NON-NLS-1$ //$NON-NLS-2$
                         : getBoolean("drawing:willNotDraw()", false); //$NON-NLS-1$
         hasFocus =
-                namedProperties.containsKey("hasFocus()") ? getBoolean("hasFocus()", false) //$NON-NLS-1$ //$NON-NLS-2$
+                hasProperty("hasFocus()") ? getBoolean("hasFocus()", false) //$NON-NLS-1$ //$NON-NLS-2$
                         : getBoolean("focus:hasFocus()", false); //$NON-NLS-1$
+        String visibilityName =
+                hasProperty("getVisibility()") ? getString("getVisibility()") //$NON-NLS-1$ //$NON-NLS-2$
+                        : getString("misc:getVisibility()"); //$NON-NLS-1$
+        if ("GONE".equals(visibilityName)) { //$NON-NLS-1$
+            visibility = GONE;
+        } else if ("INVISIBLE".equals(visibilityName)) { //$NON-NLS-1$
+            visibility = INVISIBLE;
+        } else {
+            visibility = VISIBLE;
+        }
 
         hasMargins =
                 marginLeft != Integer.MIN_VALUE && marginRight != Integer.MIN_VALUE
                         && marginTop != Integer.MIN_VALUE && marginBottom != Integer.MIN_VALUE;
-
-        for (String name : namedProperties.keySet()) {
-            int index = name.indexOf(':');
-            if (index != -1) {
-                categories.add(name.substring(0, index));
-            }
-        }
-        if (categories.size() != 0) {
-            categories.add(MISCELLANIOUS);
-        }
     }
 
     public void setProfileRatings() {
@@ -334,40 +395,111 @@ public class ViewNode {
         }
     }
 
-    protected boolean getBoolean(String name, boolean defaultValue) {
-        Property p = namedProperties.get(name);
-        if (p != null) {
-            try {
-                return Boolean.parseBoolean(p.value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
+    /** Sets the property values of this view, laid out as described by the given shape. */
+    void setProperties(PropertyShape shape, long[] bits, Object[] refs) {
+        this.shape = shape;
+        this.propertyBits = bits;
+        this.propertyRefs = refs;
+    }
+
+    PropertyShape getShape() {
+        return shape;
+    }
+
+    long[] getPropertyBits() {
+        return propertyBits;
+    }
+
+    Object[] getPropertyRefs() {
+        return propertyRefs;
+    }
+
+    /** Returns the named property, or null if the view does not have it. */
+    public Property getProperty(String name) {
+        return getProperty(PropertySymbols.lookup(name));
+    }
+
+    /** Returns the property with the given {@link PropertySymbols} id, or null. */
+    public Property getProperty(int symbol) {
+        int slot = shape.slotOf(symbol);
+        return slot >= 0 ? getPropertyAt(slot) : null;
+    }
+
+    /** Returns every property of the view, in the order they were loaded. */
+    public List<Property> getProperties() {
+        List<Property> properties = new ArrayList<Property>(shape.size());
+        for (int slot = 0; slot < shape.size(); slot++) {
+            properties.add(getPropertyAt(slot));
         }
-        return defaultValue;
+        return properties;
     }
 
-    protected int getInt(String name, int defaultValue) {
-        Property p = namedProperties.get(name);
-        if (p != null) {
-            try {
-                return Integer.parseInt(p.value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
+    public Set<String> getCategories() {
+        return shape.getCategories();
+    }
+
+    private Property getPropertyAt(int slot) {
+        return new Property(PropertySymbols.name(shape.symbolAt(slot)), shape.typeAt(slot),
+                propertyBits[slot], propertyRefs[slot]);
+    }
+
+    public boolean hasProperty(String name) {
+        return hasProperty(PropertySymbols.lookup(name));
+    }
+
+    public boolean hasProperty(int symbol) {
+        return shape.slotOf(symbol) >= 0;
+    }
+
+    /** Returns the value of the given property as displayed, or null if the view lacks it. */
+    public String getString(String name) {
+        return getString(PropertySymbols.lookup(name));
+    }
+
+    public String getString(int symbol) {
+        int slot = shape.slotOf(symbol);
+        if (slot < 0) {
+            return null;
         }
-        return defaultValue;
+        return PropertyMap.format(shape.typeAt(slot), propertyBits[slot], propertyRefs[slot]);
     }
 
-    protected float getFloat(String name, float defaultValue) {
-        Property p = namedProperties.get(name);
-        if (p != null) {
-            try {
-                return Float.parseFloat(p.value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
+    public boolean getBoolean(String name, boolean defaultValue) {
+        return getBoolean(PropertySymbols.lookup(name), defaultValue);
+    }
+
+    public boolean getBoolean(int symbol, boolean defaultValue) {
+        int slot = shape.slotOf(symbol);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        return PropertyMap.toBoolean(shape.typeAt(slot), propertyBits[slot], propertyRefs[slot]);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        return getInt(PropertySymbols.lookup(name), defaultValue);
+    }
+
+    public int getInt(int symbol, int defaultValue) {
+        int slot = shape.slotOf(symbol);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        return PropertyMap.toInt(shape.typeAt(slot), propertyBits[slot], propertyRefs[slot],
+                defaultValue);
+    }
+
+    public float getFloat(String name, float defaultValue) {
+        return getFloat(PropertySymbols.lookup(name), defaultValue);
+    }
+
+    public float getFloat(int symbol, float defaultValue) {
+        int slot = shape.slotOf(symbol);
+        if (slot < 0) {
+            return defaultValue;
         }
-        return defaultValue;
+        return PropertyMap.toFloat(shape.typeAt(slot), propertyBits[slot], propertyRefs[slot],
+                defaultValue);
     }
 
     @Override
@@ -375,14 +507,56 @@ public class ViewNode {
         return name + "@" + hashCode; //$NON-NLS-1$
     }
 
+    /**
+     * A property of a view, holding its value as decoded: a String for the legacy text format, or
+     * the encoded primitive type otherwise, kept as raw bits rather than boxed. Values are only
+     * formatted when displayed.
+     */
     public static class Property {
-        public String name;
+        public final String name;
+
+        // The Decoder signature of the value.
+        private final byte type;
+
+        private final long bits;
+
+        private final Object ref;
+
+        public Property(String name, String value) {
+            this(name, Decoder.SIG_STRING, 0, value);
+        }
 
-        public String value;
+        Property(String name, byte type, long bits, Object ref) {
+            this.name = name;
+            this.type = type;
+            this.bits = bits;
+            this.ref = ref;
+        }
+
+        /** Returns the value, boxing it if it is a primitive. */
+        public Object getRawValue() {
+            return PropertyMap.box(type, bits, ref);
+        }
+
+        public String getValue() {
+            return PropertyMap.format(type, bits, ref);
+        }
+
+        public boolean getBoolean(boolean defaultValue) {
+            return PropertyMap.toBoolean(type, bits, ref);
+        }
+
+        public int getInt(int defaultValue) {
+            return PropertyMap.toInt(type, bits, ref, defaultValue);
+        }
+
+        public float getFloat(float defaultValue) {
+            return PropertyMap.toFloat(type, bits, ref, defaultValue);
+        }
 
         @Override
         public String toString() {
-            return name + '=' + value;
+            return name + '=' + getValue();
         }
     }
 }
@@ -14,79 +14,150 @@
  * limitations under the License.
  */
 
-package com.android.cyborg;
 
-import java.util.Map;
+package com.android.cyborg;
 
 public class ViewNode2 extends ViewNode {
+    // Properties every view is loaded with.
+    private static final int LAYOUT_LEFT = PropertySymbols.intern("layout:left");
+    private static final int LAYOUT_TOP = PropertySymbols.intern("layout:top");
+    private static final int LAYOUT_WIDTH = PropertySymbols.intern("layout:width");
+    private static final int LAYOUT_HEIGHT = PropertySymbols.intern("layout:height");
+    private static final int LAYOUT_SCROLL_X = PropertySymbols.intern("layout:scrollX");
+    private static final int LAYOUT_SCROLL_Y = PropertySymbols.intern("layout:scrollY");
+    private static final int PADDING_LEFT = PropertySymbols.intern("padding:paddingLeft");
+    private static final int PADDING_RIGHT = PropertySymbols.intern("padding:paddingRight");
+    private static final int PADDING_TOP = PropertySymbols.intern("padding:paddingTop");
+    private static final int PADDING_BOTTOM = PropertySymbols.intern("padding:paddingBottom");
+    private static final int LAYOUT_LEFT_MARGIN = PropertySymbols.intern("layout_leftMargin");
+    private static final int LAYOUT_RIGHT_MARGIN = PropertySymbols.intern("layout_rightMargin");
+    private static final int LAYOUT_TOP_MARGIN = PropertySymbols.intern("layout_topMargin");
+    private static final int LAYOUT_BOTTOM_MARGIN = PropertySymbols.intern("layout_bottomMargin");
+    private static final int DRAWING_TRANSLATION_X = PropertySymbols.intern("drawing:translationX");
+    private static final int DRAWING_TRANSLATION_Y = PropertySymbols.intern("drawing:translationY");
+    private static final int LAYOUT_BASELINE = PropertySymbols.intern("layout:baseline");
+    private static final int DRAWING_WILL_NOT_DRAW = PropertySymbols.intern("drawing:willNotDraw");
+    private static final int FOCUS_HAS_FOCUS = PropertySymbols.intern("focus:hasFocus");
+
+    private PropertyMap mPendingProperties;
+
     ViewNode2(Window window, ViewNode parent) {
         super(window, parent);
     }
 
-    public void initialize(Map<Short, Object> viewProperties,
-            ViewDumpParser parser) {
-        Object v = viewProperties.get(parser.getPropertyKey("meta:__name__"));
-        if (v instanceof String) {
-            name = (String)v;
+    ViewNode2(Window window, ViewNode parent, int index) {
+        super(window, parent, index);
+    }
+
+    /** Properties as read from the dump, before their keys can be named. */
+    PropertyMap getPendingProperties() {
+        return mPendingProperties;
+    }
+
+    void setPendingProperties(PropertyMap properties) {
+        mPendingProperties = properties;
+    }
+
+    /** Returns the pending entries as a table of names indexed by key. */
+    String[] toStringTable() {
+        PropertyMap m = mPendingProperties;
+        int size = 0;
+        for (int i = 0; i < m.size(); i++) {
+            size = Math.max(size, (m.keyAt(i) & 0xffff) + 1);
         }
-        v = viewProperties.get(parser.getPropertyKey("meta:__hash__"));
-        if (v instanceof Integer) {
-            hashCode = Integer.toHexString((Integer) v);
+        String[] table = new String[size];
+        for (int i = 0; i < m.size(); i++) {
+            Object v = m.refAt(i);
+            table[m.keyAt(i) & 0xffff] =
+                    m.typeAt(i) == Decoder.SIG_STRING && v != null ? v.toString() : null;
         }
+        return table;
+    }
 
+    /**
+     * Maps the keys of the pending properties to {@link PropertySymbols} using the given table,
+     * indexed by key, and loads them.
+     */
+    void initialize(int[] symbolsByKey, PropertyShape.Cache shapes) {
         id = "unknown";
         width = height = 10;
         measureTime = layoutTime = drawTime = -1;
 
-        loadProperties(viewProperties, parser);
-    }
-
-    private void loadProperties(Map<Short, Object> viewProperties, ViewDumpParser parser) {
-        for (Map.Entry<Short, Object> p : viewProperties.entrySet()) {
-            ViewNode.Property property = new ViewNode.Property();
-            property.name = parser.getPropertyName(p.getKey());
-            Object v = p.getValue();
-            property.value = v != null ? v.toString() : "";
+        PropertyMap m = mPendingProperties;
+        int count = 0;
+        int[] symbols = shapes.symbolScratch(m.size());
+        byte[] types = shapes.typeScratch(m.size());
+        for (int i = 0; i < m.size(); i++) {
+            int key = m.keyAt(i) & 0xffff;
+            int symbol = key < symbolsByKey.length ? symbolsByKey[key] : PropertySymbols.UNKNOWN;
+            if (symbol == PropertySymbols.UNKNOWN) {
+                continue;
+            }
+            symbols[count] = symbol;
+            types[count] = m.typeAt(i);
+            count++;
+        }
+        long[] bits = m.toBitsArray();
+        Object[] refs = m.toRefsArray();
+        if (count != m.size()) {
+            // Drop the values of unnamed keys, so that slots line up with the shape.
+            long[] namedBits = new long[count];
+            Object[] namedRefs = new Object[count];
+            for (int i = 0, slot = 0; i < m.size(); i++) {
+                int key = m.keyAt(i) & 0xffff;
+                if (key < symbolsByKey.length && symbolsByKey[key] != PropertySymbols.UNKNOWN) {
+                    namedBits[slot] = bits[i];
+                    namedRefs[slot] = refs[i];
+                    slot++;
+                }
+            }
+            bits = namedBits;
+            refs = namedRefs;
+        }
+        setProperties(shapes.get(symbols, types, count), bits, refs);
+        mPendingProperties = null;
 
-            properties.add(property);
-            namedProperties.put(property.name, property);
+        if (hasProperty(PropertySymbols.META_NAME)) {
+            name = getString(PropertySymbols.META_NAME);
+        }
+        if (hasProperty(PropertySymbols.META_HASH)) {
+            hashCode = Integer.toHexString(getInt(PropertySymbols.META_HASH, 0));
         }
 
-        id = namedProperties.containsKey("id") ? namedProperties.get("id").value : "unknown";
-        left = getInt("layout:left", 0);
-        top = getInt("layout:top", 0);
-        width = getInt("layout:width", 0);
-        height = getInt("layout:height", 0);
-        scrollX = getInt("layout:scrollX", 0);
-        scrollY = getInt("layout:scrollY", 0);
+        loadFields();
+    }
+
+    @Override
+    void loadFields() {
+        id = hasProperty(PropertySymbols.ID) ? getString(PropertySymbols.ID) : "unknown";
+        left = getInt(LAYOUT_LEFT, 0);
+        top = getInt(LAYOUT_TOP, 0);
+        width = getInt(LAYOUT_WIDTH, 0);
+        height = getInt(LAYOUT_HEIGHT, 0);
+        scrollX = getInt(LAYOUT_SCROLL_X, 0);
+        scrollY = getInt(LAYOUT_SCROLL_Y, 0);
+
+        paddingLeft = getInt(PADDING_LEFT, 0);
+        paddingRight = getInt(PADDING_RIGHT, 0);
+        paddingTop = getInt(PADDING_TOP, 0);
+        paddingBottom = getInt(PADDING_BOTTOM, 0);
 
-        paddingLeft = getInt("padding:paddingLeft", 0);
-        paddingRight = getInt("padding:paddingRight", 0);
-        paddingTop = getInt("padding:paddingTop", 0);
-        paddingBottom = getInt("padding:paddingBottom", 0);
+        marginLeft = getInt(LAYOUT_LEFT_MARGIN, Integer.MIN_VALUE);
+        marginRight = getInt(LAYOUT_RIGHT_MARGIN, Integer.MIN_VALUE);
+        marginTop = getInt(LAYOUT_TOP_MARGIN, Integer.MIN_VALUE);
+        marginBottom = getInt(LAYOUT_BOTTOM_MARGIN, Integer.MIN_VALUE);
 
-        marginLeft = getInt("layout_leftMargin", Integer.MIN_VALUE);
-        marginRight = getInt("layout_rightMargin", Integer.MIN_VALUE);
-        marginTop = getInt("layout_topMargin", Integer.MIN_VALUE);
-        marginBottom = getInt("layout_bottomMargin", Integer.MIN_VALUE);
+        translationX = getFloat(DRAWING_TRANSLATION_X, 0.0f);
+        translationY = getFloat(DRAWING_TRANSLATION_Y, 0.0f);
+        visibility = getInt(PropertySymbols.VISIBILITY, VISIBLE);
 
-        baseline = getInt("layout:baseline", 0);
-        willNotDraw = getBoolean("drawing:willNotDraw", false);
-        hasFocus = getBoolean("focus:hasFocus", false);
+        baseline = getInt(LAYOUT_BASELINE, 0);
+        willNotDraw = getBoolean(DRAWING_WILL_NOT_DRAW, false);
+        hasFocus = getBoolean(FOCUS_HAS_FOCUS, false);
 
         hasMargins =
                 marginLeft != Integer.MIN_VALUE && marginRight != Integer.MIN_VALUE
                         && marginTop != Integer.MIN_VALUE && marginBottom != Integer.MIN_VALUE;
-
-        for (String name : namedProperties.keySet()) {
-            int index = name.indexOf(':');
-            if (index != -1) {
-                categories.add(name.substring(0, index));
-            }
-        }
-        if (categories.size() != 0) {
-            categories.add(MISCELLANIOUS);
-        }
     }
 }
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
+import com.android.ddmlib.IDevice;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Window titles of each client of one device, so that queries do not have to send a list request
+ * to every process when nothing suggests its windows changed.
+ *
+ * <p>A client's entry is dropped when ddmlib reports a change to that client, when one of its
+ * windows can no longer be captured, when input is sent to the device, or once it is older than
+ * the time to live.
+ */
+class WindowListCache implements AndroidDebugBridge.IClientChangeListener {
+
+  /** Client changes that may mean a different set of windows. */
+  private static final int WINDOW_CHANGE_MASK = Client.CHANGE_NAME | Client.CHANGE_INFO |
+      Client.CHANGE_PORT | Client.CHANGE_DEBUGGER_STATUS;
+
+  private final IDevice device;
+  private final Map<Client, Entry> windows = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  private volatile long ttlMillis = SnapshotCache.DEFAULT_TTL_MILLIS;
+
+  WindowListCache(IDevice device) {
+    this.device = device;
+  }
+
+  /** Returns the cached window titles of the given client, or null if they must be listed. */
+  List<String> get(Client client) {
+    Entry entry = windows.get(client);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.timeMillis >= ttlMillis) {
+      windows.remove(client, entry);
+      return null;
+    }
+    return entry.titles;
+  }
+
+  /** Stores titles listed while the cache was at {@code listGeneration}. */
+  void put(Client client, List<String> titles, long listGeneration) {
+    if (ttlMillis <= 0 || generation.get() != listGeneration) {
+      return;
+    }
+    windows.put(client, new Entry(Collections.unmodifiableList(titles),
+        System.currentTimeMillis()));
+  }
+
+  long generation() {
+    return generation.get();
+  }
+
+  void invalidate(Client client) {
+    generation.incrementAndGet();
+    windows.remove(client);
+  }
+
+  void invalidate() {
+    generation.incrementAndGet();
+    windows.clear();
+  }
+
+  /** Forgets clients that are no longer running on the device. */
+  void retainClients(Client[] clients) {
+    Set<Client> alive = new HashSet<>(Arrays.asList(clients));
+    windows.keySet().retainAll(alive);
+  }
+
+  void setTtlMillis(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    if (ttlMillis <= 0) {
+      invalidate();
+    }
+  }
+
+  @Override
+  public void clientChanged(Client client, int changeMask) {
+    if ((changeMask & WINDOW_CHANGE_MASK) != 0 && client.getDevice() == device) {
+      invalidate(client);
+    }
+  }
+
+  private static class Entry {
+    final List<String> titles;
+    final long timeMillis;
+
+    Entry(List<String> titles, long timeMillis) {
+      this.titles = titles;
+      this.timeMillis = timeMillis;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+/**
+ * The view hierarchy of a single window, as captured at a given point in time. It is held either
+ * as a tree of {@link ViewNode}s or in the {@link CompactSnapshot} form, each created from the
+ * other when first asked for.
+ */
+public class WindowSnapshot {
+  private final Window window;
+  private ViewNode root;
+  private CompactSnapshot compact;
+  private final boolean madeCompact;
+  private SpatialIndex spatialIndex;
+  private SnapshotIndex index;
+  private Long fingerprint;
+  private final long captureTimeMillis;
+
+  WindowSnapshot(Window window, ViewNode root, long captureTimeMillis) {
+    this.window = window;
+    this.root = root;
+    this.madeCompact = false;
+    ViewHierarchySnapshotter.computeAbsoluteBounds(root);
+    this.captureTimeMillis = captureTimeMillis;
+  }
+
+  WindowSnapshot(CompactSnapshot compact, long captureTimeMillis) {
+    this.window = compact.getWindow();
+    this.compact = compact;
+    this.madeCompact = true;
+    this.captureTimeMillis = captureTimeMillis;
+  }
+
+  public Window getWindow() {
+    return window;
+  }
+
+  public synchronized ViewNode getRoot() {
+    if (root == null) {
+      root = compact.getRoot();
+    }
+    return root;
+  }
+
+  public synchronized CompactSnapshot getCompact() {
+    if (compact == null) {
+      compact = CompactSnapshot.of(window, root);
+    }
+    return compact;
+  }
+
+  /** Whether the snapshot was made from its compact form, which is then the cheaper to search. */
+  public boolean isCompact() {
+    return madeCompact;
+  }
+
+  /** Returns a snapshot of the same hierarchy that only keeps its compact form. */
+  public WindowSnapshot toCompact() {
+    return new WindowSnapshot(getCompact(), captureTimeMillis);
+  }
+
+  /** Returns the index of the shown views by position, building it on first use. */
+  public synchronized SpatialIndex getSpatialIndex() {
+    if (spatialIndex == null) {
+      spatialIndex = madeCompact ? SpatialIndex.of(compact) : SpatialIndex.of(root);
+    }
+    return spatialIndex;
+  }
+
+  /** Returns the index of views by id, text and class, building it on first use. */
+  public synchronized SnapshotIndex getIndex() {
+    if (index == null) {
+      index = madeCompact ? SnapshotIndex.of(compact) : SnapshotIndex.of(root);
+    }
+    return index;
+  }
+
+  /**
+   * Returns a hash of what the window shows: the class, position, size, visibility and text of
+   * each view. Two captures of a window that is not changing have the same fingerprint.
+   */
+  public synchronized long getFingerprint() {
+    if (fingerprint == null) {
+      long hash = window.getTitle().hashCode();
+      if (madeCompact) {
+        for (int view = 0; view < compact.size(); view++) {
+          Rect rect = compact.findVisibleRect(view);
+          hash = hash(hash, compact.getHashCode(view), compact.getName(view), rect,
+              compact.getVisibility(view), compact.getTranslationX(view),
+              compact.getTranslationY(view), compact.getString(view, PropertySymbols.TEXT));
+        }
+      } else {
+        hash = hash(hash, root);
+      }
+      fingerprint = hash;
+    }
+    return fingerprint;
+  }
+
+  private static long hash(long hash, ViewNode node) {
+    hash = hash(hash, node.hashCode, node.name, ViewHierarchySnapshotter.findVisibleRect(node),
+        node.visibility, node.translationX, node.translationY,
+        node.getString(PropertySymbols.TEXT));
+    for (ViewNode child : node.children) {
+      hash = hash(hash, child);
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, String hashCode, String name, Rect rect, int visibility,
+      float translationX, float translationY, String text) {
+    hash = 31 * hash + (hashCode != null ? hashCode.hashCode() : 0);
+    hash = 31 * hash + (name != null ? name.hashCode() : 0);
+    hash = 31 * hash + rect.x;
+    hash = 31 * hash + rect.y;
+    hash = 31 * hash + rect.w;
+    hash = 31 * hash + rect.h;
+    hash = 31 * hash + visibility;
+    // Translations are where most animations show.
+    hash = 31 * hash + Float.floatToIntBits(translationX);
+    hash = 31 * hash + Float.floatToIntBits(translationY);
+    return 31 * hash + (text != null ? text.hashCode() : 0);
+  }
+
+  public long getCaptureTimeMillis() {
+    return captureTimeMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "<WindowSnapshot " + window + " @" + captureTimeMillis + ">";
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks {@link ShellChannel} against a stand-in ADB server, which runs a local {@code sh} for
+ * each shell session and can echo its input back as a device terminal does. Needs no device; run
+ * with {@code ./gradlew runTest -PmainClass=com.android.cyborg.ShellChannelTest}.
+ */
+public class ShellChannelTest {
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  public static void main(String[] args) throws Exception {
+    FakeAdbServer server = new FakeAdbServer(false);
+    FakeAdbServer terminal = new FakeAdbServer(true);
+    try {
+      testOrderedOutput(server.getAddress());
+      testFailedCommand(server.getAddress());
+      testPipelinedLargeOutput(terminal.getAddress());
+      testRejectedTransport(server.getAddress());
+      testClose(server.getAddress());
+      compareWithNewSessions(server.getAddress());
+    } finally {
+      server.close();
+      terminal.close();
+    }
+    System.err.println("All shell channel checks passed.");
+  }
+
+  private static void testOrderedOutput(InetSocketAddress adb) throws Exception {
+    ShellChannel channel = ShellChannel.open(adb, "emulator-5554");
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      results.add(channel.submit("echo out" + i));
+    }
+    for (int i = 0; i < 100; i++) {
+      check(results.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).equals("out" + i + "\n"),
+          "output of command " + i);
+    }
+    channel.close();
+  }
+
+  private static void testFailedCommand(InetSocketAddress adb) throws Exception {
+    ShellChannel channel = ShellChannel.open(adb, "emulator-5554");
+    try {
+      channel.submit("false").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      check(false, "non-zero exit status fails the command");
+    } catch (ExecutionException expected) { }
+    check(channel.submit("echo after").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).equals("after\n"),
+        "commands run after a failed one");
+    try {
+      channel.submit("echo a\necho b");
+      check(false, "multi-line commands are rejected");
+    } catch (IllegalArgumentException expected) { }
+    channel.close();
+  }
+
+  /**
+   * Queues commands whose output and echoed input are larger than the socket buffers, which
+   * only completes if the reader drains output while commands are being written.
+   */
+  private static void testPipelinedLargeOutput(InetSocketAddress adb) throws Exception {
+    ShellChannel channel = ShellChannel.open(adb, "emulator-5554");
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      padding.append('x');
+    }
+    CompletableFuture<String> last = null;
+    for (int i = 0; i < 20000; i++) {
+      last = channel.submit("printf '%04000d\\n' " + i + " # " + padding);
+    }
+    String output = last.get(60, TimeUnit.SECONDS);
+    // Along with whatever the terminal echoed meanwhile.
+    check(output.contains("00019999\n"), "output of the last command");
+    channel.close();
+  }
+
+  private static void testRejectedTransport(InetSocketAddress adb) {
+    try {
+      ShellChannel.open(adb, FakeAdbServer.OFFLINE_SERIAL);
+      check(false, "opening a shell on an unknown device fails");
+    } catch (IOException expected) { }
+  }
+
+  private static void testClose(InetSocketAddress adb) throws Exception {
+    ShellChannel channel = ShellChannel.open(adb, "emulator-5554");
+    CompletableFuture<String> running = channel.submit("sleep 5");
+    channel.close();
+    check(channel.isClosed(), "closed");
+    try {
+      running.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      check(false, "closing fails the pending commands");
+    } catch (ExecutionException expected) { }
+    try {
+      channel.submit("true").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      check(false, "commands submitted after closing fail");
+    } catch (ExecutionException expected) { }
+  }
+
+  private static void compareWithNewSessions(InetSocketAddress adb) throws Exception {
+    int count = 200;
+    ShellChannel channel = ShellChannel.open(adb, "emulator-5554");
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      channel.submit("true").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    long persistent = System.nanoTime() - start;
+    channel.close();
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      ShellChannel session = ShellChannel.open(adb, "emulator-5554");
+      session.submit("true").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      session.close();
+    }
+    long perSession = System.nanoTime() - start;
+    System.err.printf("Per command: %.3f ms in one session, %.3f ms with a session each.%n",
+        persistent / 1e6 / count, perSession / 1e6 / count);
+  }
+
+  private static void check(boolean condition, String what) {
+    if (!condition) {
+      throw new AssertionError("Failed: " + what);
+    }
+  }
+
+  /** Speaks enough of the ADB host protocol to open shells, each backed by a local sh. */
+  private static class FakeAdbServer implements Runnable {
+    static final String OFFLINE_SERIAL = "offline";
+
+    private final ServerSocket server;
+    private final boolean echo;
+
+    FakeAdbServer(boolean echo) throws IOException {
+      this.echo = echo;
+      server = new ServerSocket(0);
+      Thread thread = new Thread(this, "fake-adb");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+      return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    void close() throws IOException {
+      server.close();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        final Socket socket;
+        try {
+          socket = server.accept();
+        } catch (IOException e) {
+          return;
+        }
+        Thread session = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              serve(socket);
+            } catch (IOException ignored) {
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException ignored) { }
+            }
+          }
+        }, "fake-adb-session");
+        session.setDaemon(true);
+        session.start();
+      }
+    }
+
+    private void serve(Socket socket) throws IOException {
+      InputStream in = socket.getInputStream();
+      final OutputStream out = socket.getOutputStream();
+      if (readRequest(in).equals("host:transport:" + OFFLINE_SERIAL)) {
+        String message = "device offline";
+        out.write(String.format("FAIL%04x%s", message.length(), message)
+            .getBytes(StandardCharsets.US_ASCII));
+        return;
+      }
+      out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+      readRequest(in);
+      out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      final Process shell = new ProcessBuilder("sh").redirectErrorStream(true).start();
+      Thread output = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            copy(shell.getInputStream(), out);
+          } catch (IOException ignored) { }
+        }
+      }, "fake-adb-output");
+      output.setDaemon(true);
+      output.start();
+      try {
+        OutputStream input = shell.getOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          if (echo) {
+            synchronized (out) {
+              out.write(buffer, 0, count);
+              out.flush();
+            }
+          }
+          input.write(buffer, 0, count);
+          input.flush();
+        }
+      } finally {
+        shell.destroy();
+      }
+    }
+
+    private static void copy(InputStream from, OutputStream to) throws IOException {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = from.read(buffer)) > 0) {
+        synchronized (to) {
+          to.write(buffer, 0, count);
+          to.flush();
+        }
+      }
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+      DataInputStream data = new DataInputStream(in);
+      byte[] length = new byte[4];
+      data.readFully(length);
+      byte[] payload = new byte[Integer.parseInt(
+          new String(length, StandardCharsets.US_ASCII), 16)];
+      data.readFully(payload);
+      return new String(payload, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cyborg;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Compares {@link ViewHierarchyTextParser} with
+ * {@link ViewHierarchySnapshotter#parseViewHierarchy(BufferedReader, Window)} on the same legacy
+ * text dump, for time and allocation. Needs no device:
+ *
+ * <pre>
+ *   ./gradlew runTest -PmainClass=com.android.cyborg.ViewHierarchyParserBenchmark \
+ *       [-PmainArgs="dump file | fanout"]
+ * </pre>
+ *
+ * A dump file is one saved from a device, such as the output of the DUMP view server command.
+ * Otherwise a synthetic dump is generated, whose views have up to the given number of children.
+ */
+public class ViewHierarchyParserBenchmark {
+
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+  private static final int PARSES_PER_ROUND = 20;
+
+  public static void main(String[] args) throws IOException {
+    byte[] dump;
+    if (args.length > 0 && Files.isRegularFile(Paths.get(args[0]))) {
+      dump = Files.readAllBytes(Paths.get(args[0]));
+    } else {
+      dump = generateDump(args.length > 0 ? Integer.parseInt(args[0]) : 4);
+    }
+    ViewNode root = ViewHierarchyTextParser.parse(dump, null);
+    System.err.println("Dump of " + count(root) + " views, " + dump.length / 1024 + " KB.");
+
+    for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < PARSES_PER_ROUND; i++) {
+        parseWithReader(dump);
+      }
+      long reader = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < PARSES_PER_ROUND; i++) {
+        ViewHierarchyTextParser.parse(dump, null);
+      }
+      long bytes = System.nanoTime() - start;
+      if (round >= 0) {
+        System.err.printf("Per parse: reader %.2f ms, byte parser %.2f ms.%n",
+            reader / 1e6 / PARSES_PER_ROUND, bytes / 1e6 / PARSES_PER_ROUND);
+      }
+    }
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+      long id = Thread.currentThread().getId();
+      long start = allocations.getThreadAllocatedBytes(id);
+      parseWithReader(dump);
+      long reader = allocations.getThreadAllocatedBytes(id) - start;
+      start = allocations.getThreadAllocatedBytes(id);
+      ViewHierarchyTextParser.parse(dump, null);
+      long bytes = allocations.getThreadAllocatedBytes(id) - start;
+      System.err.println("Allocated per parse: reader " + reader / 1024 + " KB, byte parser "
+          + bytes / 1024 + " KB.");
+    }
+  }
+
+  private static ViewNode parseWithReader(byte[] dump) {
+    return ViewHierarchySnapshotter.parseViewHierarchy(new BufferedReader(
+        new InputStreamReader(new ByteArrayInputStream(dump), StandardCharsets.UTF_8)), null);
+  }
+
+  private static int count(ViewNode node) {
+    int count = 1;
+    for (ViewNode child : node.children) {
+      count += count(child);
+    }
+    return count;
+  }
+
+  /** Generates a dump shaped like those of apps: about 90 properties a view, 8 levels deep. */
+  private static byte[] generateDump(int fanout) {
+    StringBuilder dump = new StringBuilder();
+    appendView(dump, new Random(7), 0, fanout);
+    dump.append("DONE.\n");
+    return dump.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendView(StringBuilder dump, Random random, int depth, int fanout) {
+    for (int i = 0; i < depth; i++) {
+      dump.append(' ');
+    }
+    boolean text = random.nextInt(3) == 0;
+    dump.append(text ? "android.widget.TextView" : "android.widget.LinearLayout")
+        .append('@').append(Integer.toHexString(random.nextInt()));
+    appendProperty(dump, "mID",
+        random.nextInt(4) == 0 ? "NO_ID" : "id/view_" + random.nextInt(500));
+    appendProperty(dump, "layout:mLeft", Integer.toString(random.nextInt(1000)));
+    appendProperty(dump, "layout:mTop", Integer.toString(random.nextInt(2000)));
+    appendProperty(dump, "layout:getWidth()", Integer.toString(random.nextInt(1000)));
+    appendProperty(dump, "layout:getHeight()", Integer.toString(random.nextInt(400)));
+    appendProperty(dump, "drawing:translationX", random.nextInt(5) == 0 ? "1.5" : "0.0");
+    appendProperty(dump, "misc:getVisibility()", random.nextInt(6) == 0 ? "GONE" : "VISIBLE");
+    String[] categories = {"layout", "drawing", "padding", "scrolling", "focus", "misc", "text",
+        "accessibility", "measurement", "bg_"};
+    for (int i = 0; i < 80; i++) {
+      String value = i % 3 == 0 ? "false"
+          : i % 3 == 1 ? Integer.toString(random.nextInt(20)) : "SOME_ENUM_" + (i % 4);
+      appendProperty(dump, categories[i % categories.length] + ":prop" + i, value);
+    }
+    if (text) {
+      appendProperty(dump, "text:mText", "H\u00e9llo w\u00f6rld item " + random.nextInt(100000));
+    }
+    dump.append(" \n");
+    if (depth < 8) {
+      int children = random.nextInt(fanout + 1);
+      for (int i = 0; i < children; i++) {
+        appendView(dump, random, depth + 1, fanout);
+      }
+    }
+  }
+
+  private static void appendProperty(StringBuilder dump, String name, String value) {
+    dump.append(' ').append(name).append('=').append(value.length()).append(',').append(value);
+  }
+}